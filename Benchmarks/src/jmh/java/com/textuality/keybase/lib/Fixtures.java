@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2014 Tim Bray <tbray@textuality.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.textuality.keybase.lib;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The responses in src/jmh/resources/fixtures, and a transport that serves them, so that
+ *  benchmarks run the library’s real request paths without the network.  The fixtures are
+ *  synthesized in the shape of real keybase.io and proof-host responses, not recorded; see
+ *  the README there.
+ */
+public class Fixtures {
+
+    public static final String USER_LOOKUP = "user-lookup-large.json";
+    public static final String AUTOCOMPLETE = "autocomplete-100.json";
+    public static final String SIG_GET = "sig-get.json";
+    public static final String SIG_RAW = "sig-raw.bin";
+    public static final String TWITTER_PAGE = "twitter-proof.html";
+    public static final String REDDIT_PAGE = "reddit-proof.json";
+
+    public static byte[] bytes(String name) {
+        InputStream in = Fixtures.class.getResourceAsStream("/fixtures/" + name);
+        if (in == null) {
+            throw new IllegalStateException("Missing fixture " + name);
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            in.close();
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException("Can’t read fixture " + name, e);
+        }
+    }
+
+    public static String text(String name) {
+        return new String(bytes(name), BodyReader.UTF8);
+    }
+
+    /**
+     * Points the library at the fixtures, and turns off the caches that would otherwise
+     *  answer repeated requests without doing the work being measured, and the identity index,
+     *  whose bookkeeping isn’t part of what’s being measured
+     */
+    public static void install() {
+        Search.setTransport(new FixtureTransport());
+        Search.setCache(null);
+        Search.setHedgePolicy(null);
+        User.setDiskStore(null, 0);
+        com.textuality.keybase.lib.prover.Prover.setSigStore(null);
+        com.textuality.keybase.lib.prover.Fetch.setProofCache(null);
+        IdentityIndex.setDefault(null);
+    }
+
+    /**
+     * Answers each request with the fixture for its endpoint or host
+     */
+    public static class FixtureTransport implements KeybaseTransport {
+
+        private final Map<String, byte[]> mRoutes = new LinkedHashMap<String, byte[]>();
+
+        public FixtureTransport() {
+            mRoutes.put("/user/lookup.json", bytes(USER_LOOKUP));
+            mRoutes.put("/user/autocomplete.json", bytes(AUTOCOMPLETE));
+            mRoutes.put("/sig/get.json", bytes(SIG_GET));
+            mRoutes.put("twitter.com/", bytes(TWITTER_PAGE));
+            mRoutes.put("reddit.com/", bytes(REDDIT_PAGE));
+        }
+
+        @Override
+        public Response get(final String url, Map<String, String> headers) throws IOException {
+            byte[] body = null;
+            for (Map.Entry<String, byte[]> route : mRoutes.entrySet()) {
+                if (url.contains(route.getKey())) {
+                    body = route.getValue();
+                    break;
+                }
+            }
+            final int status = (body == null) ? 404 : 200;
+            final byte[] content = (body == null) ? new byte[0] : body;
+            final String type = url.endsWith(".html") || url.contains("twitter.com/") ?
+                    "text/html; charset=utf-8" : "application/json; charset=utf-8";
+            return new Response() {
+                private final InputStream mBody = new ByteArrayInputStream(content);
+
+                @Override
+                public int getStatus() {
+                    return status;
+                }
+                @Override
+                public String getUrl() {
+                    return url;
+                }
+                @Override
+                public String getHeader(String name) {
+                    if (name.equalsIgnoreCase("Content-Length")) {
+                        return Integer.toString(content.length);
+                    } else if (name.equalsIgnoreCase("Content-Type")) {
+                        return type;
+                    }
+                    return null;
+                }
+                @Override
+                public InputStream getBody() {
+                    return mBody;
+                }
+                @Override
+                public void close() {
+                }
+                @Override
+                public void abort() {
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2014 Tim Bray <tbray@textuality.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.textuality.keybase.lib;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing and walking Keybase API responses: org.json, JWalk, JStream, Match, Proof, and
+ *  reading bodies with snarf() and BodyReader
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonBenchmarks {
+
+    private static final String[] KEY_PATH = { "them", "public_keys", "primary", "bundle" };
+    private static final JWalk.Path FINGERPRINT = JWalk.compile("them", "public_keys", "primary", "key_fingerprint");
+
+    private byte[] mLookupBytes;
+    private String mLookupText;
+    private JSONObject mLookup;
+    private JSONArray mProofs;
+    private JSONArray mCompletions;
+
+    @Setup
+    public void setUp() throws JSONException {
+        mLookupBytes = Fixtures.bytes(Fixtures.USER_LOOKUP);
+        mLookupText = Fixtures.text(Fixtures.USER_LOOKUP);
+        mLookup = new JSONObject(mLookupText);
+        mProofs = JWalk.getArray(mLookup, "them", "proofs_summary", "all");
+        mCompletions = JWalk.getArray(new JSONObject(Fixtures.text(Fixtures.AUTOCOMPLETE)), "completions");
+        IdentityIndex.setDefault(null);
+    }
+
+    @Benchmark
+    public JSONObject parseUserLookup() throws JSONException {
+        return new JSONObject(mLookupText);
+    }
+
+    @Benchmark
+    public JSONObject streamKeyOnly() throws IOException, JSONException {
+        return JStream.extract(new StringReader(mLookupText), KEY_PATH);
+    }
+
+    @Benchmark
+    public String walkByNames() throws JSONException {
+        return JWalk.getString(mLookup, "them", "public_keys", "primary", "key_fingerprint");
+    }
+
+    @Benchmark
+    public String walkCompiledPath() throws JSONException {
+        return FINGERPRINT.getString(mLookup);
+    }
+
+    @Benchmark
+    public String walkMissingOpt() {
+        return JWalk.optString(mLookup, "them", "profile", "no_such_field");
+    }
+
+    @Benchmark
+    public int constructProofs() throws JSONException, KeybaseException {
+        int types = 0;
+        for (int i = 0; i < mProofs.length(); i++) {
+            types += new Proof(mProofs.getJSONObject(i)).getType();
+        }
+        return types;
+    }
+
+    @Benchmark
+    public List<Match> matchesFrom100Completions() throws JSONException, KeybaseException {
+        return Search.matchesFrom(mCompletions);
+    }
+
+    @Benchmark
+    public String snarf() throws IOException {
+        return Search.snarf(new ByteArrayInputStream(mLookupBytes));
+    }
+
+    @Benchmark
+    public String readBodyKnownLength() throws IOException {
+        return BodyReader.readString(new ByteArrayInputStream(mLookupBytes), mLookupBytes.length,
+                BodyReader.DEFAULT_MAX_BYTES, BodyReader.UTF8);
+    }
+}
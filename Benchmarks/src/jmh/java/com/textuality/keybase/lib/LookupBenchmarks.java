@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2014 Tim Bray <tbray@textuality.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.textuality.keybase.lib;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The public lookup calls end to end, from URL building to finished objects, with the
+ *  transport answering from fixtures and the caches off
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LookupBenchmarks {
+
+    @Setup
+    public void setUp() {
+        Fixtures.install();
+    }
+
+    @Benchmark
+    public User findByUsername() throws KeybaseException {
+        return User.findByUsername("tbray");
+    }
+
+    @Benchmark
+    public String keyForUsername() throws KeybaseException {
+        return User.keyForUsername("tbray");
+    }
+
+    @Benchmark
+    public int findByUsernameThenProofs() throws KeybaseException {
+        int types = 0;
+        for (Proof proof : User.findByUsername("tbray").getProofs()) {
+            types += proof.getType();
+        }
+        return types;
+    }
+
+    @Benchmark
+    public List<Match> search() throws KeybaseException {
+        return Search.searchMatches("tim");
+    }
+}
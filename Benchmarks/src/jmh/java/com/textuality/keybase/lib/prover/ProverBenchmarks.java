@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2014 Tim Bray <tbray@textuality.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.textuality.keybase.lib.prover;
+
+import com.textuality.keybase.lib.Fixtures;
+import com.textuality.keybase.lib.KeybaseException;
+import com.textuality.keybase.lib.Proof;
+import com.textuality.keybase.lib.User;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Proof checking: sig retrieval, proof-page fetching and scanning, and the raw-message hash
+ *  check, one at a time and in batches of BATCH_SIZE, against fixtures
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProverBenchmarks {
+
+    private static final int BATCH_SIZE = 1000;
+
+    private Proof mTwitterProof;
+    private Proof mRedditProof;
+    private Prover mHashChecker;
+    private byte[] mRawSig;
+    private ByteBuffer mRawSigBuffer;
+    private List<Prover> mBatchCheckers;
+    private List<ByteBuffer> mBatchSigs;
+    private String mTwitterUrl;
+
+    @Setup
+    public void setUp() throws KeybaseException, JSONException {
+        Fixtures.install();
+        for (Proof proof : User.findByUsername("tbray").getProofs()) {
+            if (proof.getType() == Proof.PROOF_TYPE_TWITTER) {
+                mTwitterProof = proof;
+            } else if (proof.getType() == Proof.PROOF_TYPE_REDDIT) {
+                mRedditProof = proof;
+            }
+        }
+        mTwitterUrl = mTwitterProof.getProofUrl();
+        mRawSig = Fixtures.bytes(Fixtures.SIG_RAW);
+        mRawSigBuffer = ByteBuffer.wrap(mRawSig);
+        String shortHash = new JSONObject(Fixtures.text(Fixtures.SIG_GET))
+                .getJSONArray("sigs").getJSONObject(0).getString("sig_id_short");
+        mHashChecker = new Reddit(mRedditProof);
+        mHashChecker.mShortenedMessageHash = shortHash;
+        mBatchCheckers = new ArrayList<Prover>(BATCH_SIZE);
+        mBatchSigs = new ArrayList<ByteBuffer>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            Prover checker = new Reddit(mRedditProof);
+            checker.mShortenedMessageHash = shortHash;
+            mBatchCheckers.add(checker);
+            mBatchSigs.add(mRawSigBuffer);
+        }
+
+        // fail now, not with misleadingly fast numbers
+        if (!new Twitter(mTwitterProof).fetchProofData() || !new Reddit(mRedditProof).fetchProofData() ||
+                !mHashChecker.checkRawMessageBytes(new ByteArrayInputStream(mRawSig))) {
+            throw new IllegalStateException("Fixtures don’t verify");
+        }
+    }
+
+    @Benchmark
+    public JSONObject readSig() throws KeybaseException, JSONException {
+        return new Twitter(mTwitterProof).readSig(mTwitterProof.getSigId());
+    }
+
+    @Benchmark
+    public Fetch fetchTweetHead() {
+        return new Fetch(mTwitterUrl, Fetch.upTo("</head>"), Fetch.DEFAULT_MAX_BYTES);
+    }
+
+    @Benchmark
+    public Fetch fetchTweetWhole() {
+        return new Fetch(mTwitterUrl);
+    }
+
+    @Benchmark
+    public boolean twitterFetchProofData() {
+        return new Twitter(mTwitterProof).fetchProofData();
+    }
+
+    @Benchmark
+    public boolean redditFetchProofData() {
+        return new Reddit(mRedditProof).fetchProofData();
+    }
+
+    @Benchmark
+    public boolean checkRawMessageBytes() {
+        return mHashChecker.checkRawMessageBytes(new ByteArrayInputStream(mRawSig));
+    }
+
+    @Benchmark
+    public boolean checkRawMessageBuffer() {
+        return mHashChecker.checkRawMessageBytes(mRawSigBuffer);
+    }
+
+    @Benchmark
+    public boolean[] checkRawMessageBatch() {
+        for (Prover checker : mBatchCheckers) {
+            checker.mLog.clear();
+        }
+        return Prover.checkRawMessageBytes(mBatchCheckers, mBatchSigs);
+    }
+}
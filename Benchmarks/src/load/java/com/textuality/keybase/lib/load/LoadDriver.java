@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2014 Tim Bray <tbray@textuality.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.textuality.keybase.lib.load;
+
+import com.textuality.keybase.lib.HistogramMetrics;
+import com.textuality.keybase.lib.HostScheduler;
+import com.textuality.keybase.lib.HttpTransport;
+import com.textuality.keybase.lib.KeybaseMetrics;
+import com.textuality.keybase.lib.Proof;
+import com.textuality.keybase.lib.Search;
+import com.textuality.keybase.lib.ThrottledTransport;
+import com.textuality.keybase.lib.User;
+import com.textuality.keybase.lib.prover.Fetch;
+import com.textuality.keybase.lib.prover.Prover;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * End-to-end load test: starts a MockKeybaseServer, points the library at it, and has a number
+ *  of threads run one workload flat out for a while, then reports throughput and latency
+ *  percentiles, plus the library’s own per-phase metrics.  Everything runs on localhost.
+ *
+ *   ../gradlew loadTest -Pargs="--workload=verify --threads=32 --seconds=30 --latency=50 --jitter=100"
+ *
+ * Workloads:
+ *  lookup  User.findByUsername
+ *  search  Search.searchMatches
+ *  verify  a lookup, then fetchProofData() for the user’s Twitter and Reddit proofs
+ *
+ * Options, with defaults: --threads=16 --seconds=20 --warmup=5 --latency=20 (ms) --jitter=20 (ms)
+ *  --errors=0 and --throttle=0 (fractions of requests answered 500 and 429), --users=1000
+ *  (distinct usernames asked for), --rate=0 (requests/second per host, 0 for unlimited), and
+ *  --caches, which leaves the library’s caches on rather than making every operation go to
+ *  the server.
+ */
+public class LoadDriver {
+
+    private static final String[] WORKLOADS = { "lookup", "search", "verify" };
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parse(args);
+        String workload = option(options, "workload", "verify");
+        if (!Arrays.asList(WORKLOADS).contains(workload)) {
+            usage("unknown workload " + workload);
+        }
+        int threads = Integer.parseInt(option(options, "threads", "16"));
+        long seconds = Long.parseLong(option(options, "seconds", "20"));
+        long warmup = Long.parseLong(option(options, "warmup", "5"));
+        int users = Integer.parseInt(option(options, "users", "1000"));
+        double rate = Double.parseDouble(option(options, "rate", "0"));
+
+        // the platform’s keep-alive pool, which must be sized before the first request
+        System.setProperty("http.maxConnections", Integer.toString(threads));
+
+        MockKeybaseServer server = new MockKeybaseServer(
+                Long.parseLong(option(options, "latency", "20")),
+                Long.parseLong(option(options, "jitter", "20")),
+                Double.parseDouble(option(options, "errors", "0")),
+                Double.parseDouble(option(options, "throttle", "0")));
+        server.start();
+
+        // the mock is one host, but the library should see and pace the real ones
+        HostScheduler scheduler = new HostScheduler().setDefaultLimits(rate, threads, threads);
+        Search.setTransport(new ThrottledTransport(
+                new RewritingTransport(new HttpTransport(10000, 10000), server.getBaseUrl()), scheduler));
+        if (!options.containsKey("caches")) {
+            Search.setCache(null);
+            User.setDiskStore(null, 0);
+            Prover.setSigStore(null);
+            Fetch.setProofCache(null);
+        }
+
+        System.out.println(String.format(Locale.US, "%s: %d threads, %ds (+%ds warmup), server at %s",
+                workload, threads, seconds, warmup, server.getBaseUrl()));
+        try {
+            run(workload, threads, warmup, users, false);
+            HistogramMetrics metrics = new HistogramMetrics();
+            KeybaseMetrics.install(metrics);
+            Result result = run(workload, threads, seconds, users, true);
+            KeybaseMetrics.install(null);
+            System.out.println(result.report(workload, seconds));
+            System.out.println(metrics);
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static Result run(final String workload, int threads, long seconds, final int users,
+                              boolean measured) throws InterruptedException {
+        final long end = System.nanoTime() + seconds * 1000000000L;
+        final Result result = new Result();
+        List<Thread> workers = new ArrayList<Thread>(threads);
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random();
+                    long[] latencies = new long[1024];
+                    int count = 0;
+                    while (System.nanoTime() < end) {
+                        String username = "user" + random.nextInt(users);
+                        long start = System.nanoTime();
+                        String failure = once(workload, username);
+                        long elapsed = System.nanoTime() - start;
+                        if (failure == null) {
+                            if (count == latencies.length) {
+                                latencies = Arrays.copyOf(latencies, count * 2);
+                            }
+                            latencies[count++] = elapsed;
+                        } else {
+                            result.fail(failure);
+                        }
+                    }
+                    result.add(latencies, count);
+                }
+            }, "load-" + i);
+            worker.start();
+            workers.add(worker);
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return result;
+    }
+
+    // null if it worked, otherwise what went wrong
+    private static String once(String workload, String username) {
+        try {
+            if (workload.equals("search")) {
+                Search.searchMatches(username);
+                return null;
+            }
+            User user = User.findByUsername(username);
+            if (workload.equals("verify")) {
+                for (Proof proof : user.getProofs()) {
+                    if (proof.getType() == Proof.PROOF_TYPE_TWITTER || proof.getType() == Proof.PROOF_TYPE_REDDIT) {
+                        Prover prover = Prover.findProverFor(proof);
+                        if (!prover.fetchProofData()) {
+                            List<String> log = prover.getLog();
+                            return proof.getPrettyName() + ": " + (log.isEmpty() ? "failed" : log.get(log.size() - 1));
+                        }
+                    }
+                }
+            }
+            return null;
+        } catch (Exception e) {
+            return e.getClass().getSimpleName() + ": " + e.getMessage();
+        }
+    }
+
+    private static class Result {
+        private final List<long[]> mLatencies = new ArrayList<long[]>();
+        private int mCount = 0;
+        private final ConcurrentMap<String, AtomicLong> mFailures = new ConcurrentHashMap<String, AtomicLong>();
+        private final AtomicLong mFailed = new AtomicLong();
+
+        synchronized void add(long[] latencies, int count) {
+            mLatencies.add(Arrays.copyOf(latencies, count));
+            mCount += count;
+        }
+
+        void fail(String why) {
+            mFailed.incrementAndGet();
+            AtomicLong count = mFailures.get(why);
+            if (count == null) {
+                AtomicLong fresh = new AtomicLong();
+                count = mFailures.putIfAbsent(why, fresh);
+                if (count == null) {
+                    count = fresh;
+                }
+            }
+            count.incrementAndGet();
+        }
+
+        synchronized String report(String workload, long seconds) {
+            long[] all = new long[mCount];
+            int at = 0;
+            for (long[] latencies : mLatencies) {
+                System.arraycopy(latencies, 0, all, at, latencies.length);
+                at += latencies.length;
+            }
+            Arrays.sort(all);
+
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format(Locale.US, "%s: %d ok, %d failed, %.1f ok/s%n",
+                    workload, mCount, mFailed.get(), mCount / (double) seconds));
+            if (mCount > 0) {
+                sb.append(String.format(Locale.US, "  latency ms: p50 %.1f  p90 %.1f  p99 %.1f  p99.9 %.1f  max %.1f%n",
+                        millis(all, 0.5), millis(all, 0.9), millis(all, 0.99), millis(all, 0.999),
+                        all[all.length - 1] / 1e6));
+            }
+            for (Map.Entry<String, AtomicLong> failure : mFailures.entrySet()) {
+                sb.append(String.format(Locale.US, "  %6d  %s%n", failure.getValue().get(), failure.getKey()));
+            }
+            return sb.toString();
+        }
+
+        private static double millis(long[] sorted, double percentile) {
+            int index = (int) Math.ceil(percentile * sorted.length) - 1;
+            return sorted[Math.max(0, index)] / 1e6;
+        }
+    }
+
+    private static Map<String, String> parse(String[] args) {
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                usage("unexpected argument " + arg);
+            }
+            int equals = arg.indexOf('=');
+            if (equals == -1) {
+                options.put(arg.substring(2), "");
+            } else {
+                options.put(arg.substring(2, equals), arg.substring(equals + 1));
+            }
+        }
+        return options;
+    }
+
+    private static String option(Map<String, String> options, String name, String fallback) {
+        String value = options.get(name);
+        return (value == null || value.length() == 0) ? fallback : value;
+    }
+
+    private static void usage(String problem) {
+        System.err.println("LoadDriver: " + problem);
+        System.err.println("usage: LoadDriver [--workload=lookup|search|verify] [--threads=N] [--seconds=N] " +
+                "[--warmup=N] [--latency=ms] [--jitter=ms] [--errors=f] [--throttle=f] [--users=N] [--rate=r] " +
+                "[--caches]");
+        System.exit(2);
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2014 Tim Bray <tbray@textuality.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.textuality.keybase.lib.load;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.textuality.keybase.lib.Fixtures;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A stand-in for keybase.io and the proof hosts, on localhost, serving the benchmark fixtures.
+ *
+ * Paths are the real URL’s path, for keybase.io, or its host and path, for proof hosts, e.g.
+ *  /_/api/1.0/user/lookup.json?username=x and /twitter.com/timbray/status/1.  RewritingTransport
+ *  maps real URLs onto these.
+ *
+ * Every response can be slowed by a fixed latency plus uniform jitter, and a fraction of
+ *  requests can be failed with a 500, or turned away with a 429 and Retry-After: 1.  Bodies
+ *  are gzipped for clients that ask.
+ */
+public class MockKeybaseServer {
+
+    private final HttpServer mServer;
+    private final ExecutorService mThreads = Executors.newCachedThreadPool();
+    private final long mLatencyMillis;
+    private final long mJitterMillis;
+    private final double mErrorRate;
+    private final double mThrottleRate;
+
+    /**
+     * @param latencyMillis added to every response
+     * @param jitterMillis up to this much more, uniformly distributed
+     * @param errorRate fraction of requests answered 500
+     * @param throttleRate fraction of requests answered 429
+     */
+    public MockKeybaseServer(long latencyMillis, long jitterMillis, double errorRate, double throttleRate)
+            throws IOException {
+        mLatencyMillis = latencyMillis;
+        mJitterMillis = jitterMillis;
+        mErrorRate = errorRate;
+        mThrottleRate = throttleRate;
+
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.setExecutor(mThreads);
+        mServer.createContext("/_/api/1.0/user/lookup.json", new Fixture(Fixtures.USER_LOOKUP, JSON));
+        mServer.createContext("/_/api/1.0/user/autocomplete.json", new Fixture(Fixtures.AUTOCOMPLETE, JSON));
+        mServer.createContext("/_/api/1.0/sig/get.json", new Fixture(Fixtures.SIG_GET, JSON));
+        mServer.createContext("/twitter.com/", new Fixture(Fixtures.TWITTER_PAGE, HTML));
+        mServer.createContext("/www.reddit.com/", new Fixture(Fixtures.REDDIT_PAGE, JSON));
+    }
+
+    public void start() {
+        mServer.start();
+    }
+
+    public void stop() {
+        mServer.stop(0);
+        mThreads.shutdownNow();
+    }
+
+    /**
+     * @return e.g. http://127.0.0.1:43210/
+     */
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + mServer.getAddress().getPort() + "/";
+    }
+
+    private static final String JSON = "application/json; charset=utf-8";
+    private static final String HTML = "text/html; charset=utf-8";
+
+    private final ThreadLocal<Random> mRandom = new ThreadLocal<Random>() {
+        @Override
+        protected Random initialValue() {
+            return new Random();
+        }
+    };
+
+    private class Fixture implements HttpHandler {
+        private final byte[] mBody;
+        private final byte[] mGzipped;
+        private final String mType;
+
+        Fixture(String name, String type) throws IOException {
+            mBody = Fixtures.bytes(name);
+            mType = type;
+            ByteArrayOutputStream zipped = new ByteArrayOutputStream();
+            GZIPOutputStream gzip = new GZIPOutputStream(zipped);
+            gzip.write(mBody);
+            gzip.close();
+            mGzipped = zipped.toByteArray();
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                Random random = mRandom.get();
+                long delay = mLatencyMillis + ((mJitterMillis > 0) ? (long) (random.nextDouble() * mJitterMillis) : 0);
+                if (delay > 0) {
+                    Thread.sleep(delay);
+                }
+                double roll = random.nextDouble();
+                if (roll < mThrottleRate) {
+                    exchange.getResponseHeaders().set("Retry-After", "1");
+                    exchange.sendResponseHeaders(429, -1);
+                } else if (roll < mThrottleRate + mErrorRate) {
+                    exchange.sendResponseHeaders(500, -1);
+                } else {
+                    String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+                    boolean gzip = (accept != null && accept.contains("gzip"));
+                    byte[] body = gzip ? mGzipped : mBody;
+                    exchange.getResponseHeaders().set("Content-Type", mType);
+                    if (gzip) {
+                        exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                    }
+                    exchange.sendResponseHeaders(200, body.length);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(body);
+                    out.close();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                // the client went away, e.g. a cancelled hedge
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+}
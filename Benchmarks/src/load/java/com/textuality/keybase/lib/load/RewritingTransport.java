@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2014 Tim Bray <tbray@textuality.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.textuality.keybase.lib.load;
+
+import com.textuality.keybase.lib.KeybaseTransport;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Sends requests for real URLs to a MockKeybaseServer instead: https://keybase.io/path becomes
+ *  base/path, and https://host/path becomes base/host/path.  Everything above the transport,
+ *  Fetch’s own view of the URL included, still sees the real URL.
+ */
+public class RewritingTransport implements KeybaseTransport {
+
+    private final KeybaseTransport mTransport;
+    private final String mBase;
+
+    public RewritingTransport(KeybaseTransport transport, String base) {
+        mTransport = transport;
+        mBase = base;
+    }
+
+    @Override
+    public Response get(String url, Map<String, String> headers) throws IOException {
+        String rest = url.substring(url.indexOf("://") + 3);
+        if (rest.startsWith("keybase.io/")) {
+            rest = rest.substring("keybase.io/".length());
+        }
+        return mTransport.get(mBase + rest, headers);
+    }
+}
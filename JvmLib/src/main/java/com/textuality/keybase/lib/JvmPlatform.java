@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2014 Tim Bray <tbray@textuality.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.textuality.keybase.lib;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Platform on the plain JVM.  Debug messages go to java.util.logging at FINE, under a logger
+ *  named for the tag, so they’re off unless configured on.
+ */
+public class JvmPlatform extends Platform {
+
+    @Override
+    public void debug(String tag, String message) {
+        Logger logger = Logger.getLogger(tag);
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine(message);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2014 Tim Bray <tbray@textuality.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.textuality.keybase.lib;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class BodyReaderTest {
+
+    private static InputStream bytes(int length) {
+        byte[] body = new byte[length];
+        Arrays.fill(body, (byte) 'x');
+        return new ByteArrayInputStream(body);
+    }
+
+    private static void assertTooLarge(InputStream in, int contentLength, int maxBytes) throws IOException {
+        try {
+            BodyReader.readBuffer(in, contentLength, maxBytes);
+            fail("read a body over " + maxBytes + " bytes");
+        } catch (BodyReader.TooLargeException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void readsWithAndWithoutLength() throws IOException {
+        assertEquals(100000, BodyReader.readBuffer(bytes(100000), 100000, 100000).limit());
+        assertEquals(100000, BodyReader.readBuffer(bytes(100000), -1, 100000).limit());
+        assertEquals("héllo", BodyReader.readString(
+                new ByteArrayInputStream("héllo".getBytes(BodyReader.UTF8)), -1, 100, BodyReader.UTF8));
+    }
+
+    @Test
+    public void rejectsDeclaredLengthOverMax() throws IOException {
+        assertTooLarge(bytes(10), Integer.MAX_VALUE, 1024);
+    }
+
+    @Test
+    public void rejectsBodyOverMax() throws IOException {
+        assertTooLarge(bytes(100000), -1, 50000);
+        assertTooLarge(bytes(100000), 10, 50000);
+        assertTooLarge(bytes(1025), 1024, 1024);
+    }
+
+    @Test
+    public void doesntTrustHugeLengths() throws IOException {
+        ByteBuffer body = BodyReader.readBuffer(bytes(10), Integer.MAX_VALUE, Integer.MAX_VALUE);
+        assertEquals(10, body.limit());
+    }
+
+    @Test
+    public void growsPastScratchSize() throws IOException {
+        assertEquals(1000000, BodyReader.readString(bytes(1000000), -1, 1000000, BodyReader.UTF8).length());
+        // and the next read on this thread is unaffected
+        assertEquals(5, BodyReader.readString(bytes(5), -1, 5, BodyReader.UTF8).length());
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2014 Tim Bray <tbray@textuality.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.textuality.keybase.lib;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DiskStoreTest {
+
+    @Rule
+    public TemporaryFolder mDir = new TemporaryFolder();
+
+    @Test
+    public void storesUnderEveryKey() throws IOException {
+        DiskStore store = new DiskStore(mDir.getRoot(), "users");
+        store.put("tim", "u:tbray", "f:abcd");
+        assertEquals("tim", store.get("u:tbray", Long.MAX_VALUE));
+        assertEquals("tim", store.get("f:abcd", Long.MAX_VALUE));
+        assertNull(store.get("u:nobody", Long.MAX_VALUE));
+        store.close();
+    }
+
+    @Test
+    public void latestValueWins() throws IOException {
+        DiskStore store = new DiskStore(mDir.getRoot(), "users");
+        store.put("old", "k");
+        store.put("new", "k");
+        assertEquals("new", store.get("k", Long.MAX_VALUE));
+        store.close();
+    }
+
+    @Test
+    public void survivesReopening() throws IOException {
+        DiskStore store = new DiskStore(mDir.getRoot(), "users");
+        for (int i = 0; i < 3000; i++) {
+            store.put("value " + i, "k" + i);
+        }
+        store.close();
+
+        store = new DiskStore(mDir.getRoot(), "users");
+        for (int i = 0; i < 3000; i++) {
+            assertEquals("value " + i, store.get("k" + i, Long.MAX_VALUE));
+        }
+        store.close();
+    }
+
+    @Test
+    public void oldValuesAreMissing() throws IOException, InterruptedException {
+        DiskStore store = new DiskStore(mDir.getRoot(), "users");
+        store.put("v", "k");
+        Thread.sleep(20);
+        assertNull(store.get("k", 5));
+        assertEquals("v", store.get("k", 60000));
+        store.close();
+    }
+
+    @Test
+    public void rebuildsALostIndexAndDropsATornTail() throws IOException {
+        DiskStore store = new DiskStore(mDir.getRoot(), "users");
+        store.put("one", "k1");
+        store.put("two", "k2");
+        store.close();
+
+        File data = new File(mDir.getRoot(), "users.dat");
+        long intact = data.length();
+        RandomAccessFile raf = new RandomAccessFile(data, "rw");
+        raf.seek(intact);
+        raf.write(new byte[] { 0, 0, 0, 0, 0, 0, 0, 1, 0 });
+        raf.close();
+        assertTrue(new File(mDir.getRoot(), "users.idx").delete());
+
+        store = new DiskStore(mDir.getRoot(), "users");
+        assertEquals("one", store.get("k1", Long.MAX_VALUE));
+        assertEquals("two", store.get("k2", Long.MAX_VALUE));
+        assertEquals(intact, data.length());
+        store.close();
+    }
+
+    @Test
+    public void failedOpenIsRetriedNotHalfUsed() throws IOException {
+        // a directory where the index file should be makes the open fail
+        File index = new File(mDir.getRoot(), "users.idx");
+        assertTrue(index.mkdir());
+        DiskStore store = new DiskStore(mDir.getRoot(), "users");
+        for (int attempt = 0; attempt < 2; attempt++) {
+            try {
+                store.get("k", Long.MAX_VALUE);
+                fail("opened with no index file");
+            } catch (IOException e) {
+                // expected, every time
+            }
+        }
+
+        assertTrue(index.delete());
+        store.put("v", "k");
+        assertEquals("v", store.get("k", Long.MAX_VALUE));
+        store.close();
+    }
+}
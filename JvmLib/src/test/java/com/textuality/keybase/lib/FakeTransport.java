@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2014 Tim Bray <tbray@textuality.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.textuality.keybase.lib;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory transport for tests: a Handler makes up each response, and every requested URL is
+ *  recorded.  install() points the library at it with its caches off; restore() puts back what
+ *  was there before.
+ */
+public class FakeTransport implements KeybaseTransport {
+
+    public interface Handler {
+        Response handle(String url, Map<String, String> headers) throws IOException;
+    }
+
+    private final Handler mHandler;
+    private final List<String> mRequests = Collections.synchronizedList(new ArrayList<String>());
+
+    private KeybaseTransport mSavedTransport;
+    private KeybaseCache mSavedCache;
+    private HedgePolicy mSavedHedge;
+
+    public FakeTransport(Handler handler) {
+        mHandler = handler;
+    }
+
+    public FakeTransport install() {
+        mSavedTransport = Search.getTransport();
+        mSavedCache = Search.getCache();
+        mSavedHedge = Search.getHedgePolicy();
+        Search.setTransport(this);
+        Search.setCache(null);
+        Search.setHedgePolicy(null);
+        return this;
+    }
+
+    public void restore() {
+        Search.setTransport(mSavedTransport);
+        Search.setCache(mSavedCache);
+        Search.setHedgePolicy(mSavedHedge);
+    }
+
+    public List<String> getRequests() {
+        synchronized (mRequests) {
+            return new ArrayList<String>(mRequests);
+        }
+    }
+
+    @Override
+    public Response get(String url, Map<String, String> headers) throws IOException {
+        mRequests.add(url);
+        return mHandler.handle(url, headers);
+    }
+
+    /**
+     * Answers every request with the same JSON
+     */
+    public static Handler json(final String body) {
+        return new Handler() {
+            @Override
+            public Response handle(String url, Map<String, String> headers) {
+                return response(url, 200, "application/json; charset=utf-8", body);
+            }
+        };
+    }
+
+    public static Response response(String url, int status, String contentType, String body) {
+        Map<String, String> headers = new HashMap<String, String>();
+        if (contentType != null) {
+            headers.put("content-type", contentType);
+        }
+        return response(url, status, headers, body);
+    }
+
+    /**
+     * @param headers with lower-case names
+     */
+    public static Response response(final String url, final int status, final Map<String, String> headers,
+                                    String body) {
+        final byte[] bytes = body.getBytes(LocalServer.UTF8);
+        return new Response() {
+            private final InputStream mBody = new ByteArrayInputStream(bytes);
+
+            @Override
+            public int getStatus() {
+                return status;
+            }
+            @Override
+            public String getUrl() {
+                return url;
+            }
+            @Override
+            public String getHeader(String name) {
+                return headers.get(name.toLowerCase());
+            }
+            @Override
+            public InputStream getBody() {
+                return mBody;
+            }
+            @Override
+            public void close() {
+            }
+            @Override
+            public void abort() {
+            }
+        };
+    }
+}
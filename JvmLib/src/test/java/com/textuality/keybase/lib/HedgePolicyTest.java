@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2014 Tim Bray <tbray@textuality.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.textuality.keybase.lib;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HedgePolicyTest {
+
+    private final ExecutorService mPool = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        mPool.shutdownNow();
+    }
+
+    @Test
+    public void usesInitialDelayUntilEnoughSamples() {
+        HedgePolicy hedge = new HedgePolicy(mPool, 0.95, 1, 777);
+        for (int i = 0; i < HedgePolicy.SAMPLES_NEEDED - 1; i++) {
+            hedge.record(5);
+        }
+        assertEquals(777, hedge.getDelayMillis());
+        hedge.record(5);
+        assertEquals(5, hedge.getDelayMillis());
+    }
+
+    @Test
+    public void delayIsPercentileRoundedUpByAtMostAQuarter() {
+        HedgePolicy hedge = new HedgePolicy(mPool, 0.95, 1, 1000);
+        for (int millis = 100; millis >= 1; millis--) {
+            hedge.record(millis);
+        }
+        long delay = hedge.getDelayMillis();
+        assertTrue("delay " + delay, delay >= 95 && delay <= 95 * 5 / 4);
+
+        // old samples age out
+        for (int i = 0; i < 256; i++) {
+            hedge.record(3);
+        }
+        assertEquals(3, hedge.getDelayMillis());
+    }
+
+    @Test
+    public void bucketsCoverEveryTime() {
+        for (long millis = 0; millis < 100000; millis++) {
+            int bucket = HedgePolicy.bucket(millis);
+            assertTrue(millis <= HedgePolicy.upperBound(bucket));
+            assertTrue(bucket == 0 || millis > HedgePolicy.upperBound(bucket - 1));
+        }
+        assertTrue(HedgePolicy.upperBound(HedgePolicy.bucket(Long.MAX_VALUE)) > 0);
+    }
+
+    @Test
+    public void fastHedgeWins() throws Exception {
+        HedgePolicy hedge = new HedgePolicy(mPool, 0.95, 1, 20);
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch slowInterrupted = new CountDownLatch(1);
+        String result = hedge.run(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                if (calls.incrementAndGet() == 1) {
+                    try {
+                        Thread.sleep(10000);
+                    } catch (InterruptedException e) {
+                        slowInterrupted.countDown();
+                        throw e;
+                    }
+                    return "slow";
+                }
+                return "fast";
+            }
+        });
+        assertEquals("fast", result);
+        assertEquals(1, hedge.getHedgeCount());
+        assertTrue(slowInterrupted.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void cancellingCallerCancelsAttempts() throws Exception {
+        final HedgePolicy hedge = new HedgePolicy(mPool, 0.95, 1, 20);
+        final CountDownLatch started = new CountDownLatch(2);
+        final CountDownLatch interrupted = new CountDownLatch(2);
+        final Callable<String> stuck = new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                started.countDown();
+                try {
+                    Thread.sleep(10000);
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                    throw e;
+                }
+                return "stuck";
+            }
+        };
+        KeybaseFuture<String> caller = KeybaseFuture.submit(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return hedge.run(stuck);
+            }
+        }, mPool);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        // not interrupting the caller, so only the cancellation reaches the attempts
+        caller.cancel(false);
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+        try {
+            caller.get();
+            fail("expected cancellation");
+        } catch (CancellationException e) {
+            // expected
+        }
+    }
+}
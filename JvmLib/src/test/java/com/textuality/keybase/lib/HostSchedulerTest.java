@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2014 Tim Bray <tbray@textuality.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.textuality.keybase.lib;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HostSchedulerTest {
+
+    // a thread that acquires the host, and signals when it has
+    private static class Acquirer extends Thread {
+        final CountDownLatch mAcquired = new CountDownLatch(1);
+        private final HostScheduler mScheduler;
+        private final String mHost;
+
+        Acquirer(HostScheduler scheduler, String host) {
+            mScheduler = scheduler;
+            mHost = host;
+            setDaemon(true);
+            start();
+        }
+
+        @Override
+        public void run() {
+            try {
+                mScheduler.acquire(mHost);
+                mAcquired.countDown();
+            } catch (InterruptedException e) {
+                // done
+            }
+        }
+
+        boolean acquired(long millis) throws InterruptedException {
+            return mAcquired.await(millis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static void churn(HostScheduler scheduler, int hosts) throws InterruptedException {
+        for (int i = 0; i < hosts; i++) {
+            scheduler.acquire("host" + i + ".example.com");
+            scheduler.release("host" + i + ".example.com");
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void unlimitedByDefault() throws InterruptedException {
+        HostScheduler scheduler = new HostScheduler();
+        for (int i = 0; i < 1000; i++) {
+            scheduler.acquire("keybase.io");
+        }
+    }
+
+    @Test
+    public void limitsWhenAsked() throws InterruptedException {
+        HostScheduler scheduler = new HostScheduler().setDefaultLimits(0, 1, 2);
+        scheduler.acquire("keybase.io");
+        scheduler.acquire("KEYBASE.IO");
+        Acquirer third = new Acquirer(scheduler, "keybase.io");
+        assertFalse(third.acquired(100));
+        scheduler.release("keybase.io");
+        assertTrue(third.acquired(5000));
+    }
+
+    @Test
+    public void forgetsIdleHosts() throws InterruptedException {
+        HostScheduler scheduler = new HostScheduler().setDefaultLimits(1000, 10, 4);
+        churn(scheduler, HostScheduler.MAX_HOSTS * 3);
+        assertTrue(scheduler.size() <= HostScheduler.MAX_HOSTS + 1);
+    }
+
+    @Test
+    public void remembersBusyHosts() throws InterruptedException {
+        HostScheduler scheduler = new HostScheduler().setDefaultLimits(0, 1, 1);
+        scheduler.acquire("busy.example.com");
+        churn(scheduler, HostScheduler.MAX_HOSTS * 2);
+        Acquirer waiting = new Acquirer(scheduler, "busy.example.com");
+        assertFalse(waiting.acquired(100));
+        scheduler.release("busy.example.com");
+        assertTrue(waiting.acquired(5000));
+    }
+
+    @Test
+    public void remembersBackOffs() throws InterruptedException {
+        HostScheduler scheduler = new HostScheduler();
+        scheduler.backOff("slow.example.com", 60000);
+        churn(scheduler, HostScheduler.MAX_HOSTS * 2);
+        Acquirer waiting = new Acquirer(scheduler, "slow.example.com");
+        assertFalse(waiting.acquired(100));
+        waiting.interrupt();
+    }
+
+    @Test
+    public void hugeBackOffsDontOverflow() throws InterruptedException {
+        HostScheduler scheduler = new HostScheduler();
+        scheduler.backOff("slow.example.com", Long.MAX_VALUE);
+        Acquirer waiting = new Acquirer(scheduler, "slow.example.com");
+        assertFalse(waiting.acquired(100));
+        waiting.interrupt();
+    }
+
+    @Test
+    public void clampsRetryAfter() {
+        assertEquals(HostScheduler.MAX_BACK_OFF, ThrottledTransport.retryAfter("99999999999999999"));
+        assertEquals(HostScheduler.MAX_BACK_OFF, ThrottledTransport.retryAfter("Fri, 31 Dec 9999 23:59:59 GMT"));
+        assertEquals(120000, ThrottledTransport.retryAfter(" 120 "));
+        assertEquals(0, ThrottledTransport.retryAfter("-5"));
+        assertEquals(-1, ThrottledTransport.retryAfter("soon"));
+    }
+}
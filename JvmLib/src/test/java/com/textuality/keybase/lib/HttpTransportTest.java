@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2014 Tim Bray <tbray@textuality.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.textuality.keybase.lib;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class HttpTransportTest {
+
+    private LocalServer mServer;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new LocalServer();
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop();
+    }
+
+    @Test
+    public void leavesSystemPropertiesAlone() {
+        String keepAlive = System.clearProperty("http.keepAlive");
+        String maxConnections = System.clearProperty("http.maxConnections");
+        try {
+            new HttpTransport();
+            new HttpTransport(1000, 1000);
+            assertNull(System.getProperty("http.keepAlive"));
+            assertNull(System.getProperty("http.maxConnections"));
+        } finally {
+            if (keepAlive != null) {
+                System.setProperty("http.keepAlive", keepAlive);
+            }
+            if (maxConnections != null) {
+                System.setProperty("http.maxConnections", maxConnections);
+            }
+        }
+    }
+
+    @Test
+    public void readsBody() throws IOException {
+        mServer.handle("/hello", LocalServer.fixed(200, "text/plain; charset=utf-8", "héllo"));
+        KeybaseTransport.Response response = new HttpTransport().get(mServer.url("/hello"), null);
+        try {
+            assertEquals(200, response.getStatus());
+            assertEquals("héllo", BodyReader.readString(response, 1024));
+        } finally {
+            response.close();
+        }
+    }
+}
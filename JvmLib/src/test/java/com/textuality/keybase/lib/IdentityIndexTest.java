@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2014 Tim Bray <tbray@textuality.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.textuality.keybase.lib;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class IdentityIndexTest {
+
+    private static Match match(String username, String fullName) {
+        return new Match(username, fullName, "0123abcd", 1, 2048, Collections.<String>emptyList());
+    }
+
+    // describes a match, and counts how often it's asked to
+    private static IdentityIndex.Source source(final Match match, final String handle, final AtomicInteger described) {
+        return new IdentityIndex.Source() {
+            @Override
+            public Match describe(Collection<String> handles) {
+                described.incrementAndGet();
+                handles.add(handle);
+                return match;
+            }
+        };
+    }
+
+    private static List<String> usernames(List<Match> matches) {
+        List<String> usernames = new ArrayList<String>();
+        for (Match match : matches) {
+            usernames.add(match.mUsername);
+        }
+        return usernames;
+    }
+
+    @Test
+    public void offByDefault() {
+        // other tests may install their own, but never leave one behind
+        assertNull(IdentityIndex.getDefault());
+    }
+
+    @Test
+    public void describesOnlyWhenSearched() {
+        IdentityIndex index = new IdentityIndex(100);
+        AtomicInteger described = new AtomicInteger();
+        index.add(source(match("tbray", "Tim Bray"), "@timbray", described));
+        index.add(source(match("alice", "Alice Liddell"), "alice.example.com", described));
+        assertEquals(0, described.get());
+
+        assertEquals("[tbray]", usernames(index.search("TIM", 10)).toString());
+        assertEquals(2, described.get());
+        assertEquals("[alice]", usernames(index.search("lid", 10)).toString());
+        assertEquals("[alice]", usernames(index.search("alice.ex", 10)).toString());
+        assertEquals(2, described.get());
+    }
+
+    @Test
+    public void pendingIsBounded() {
+        IdentityIndex index = new IdentityIndex(1000);
+        AtomicInteger described = new AtomicInteger();
+        for (int i = 0; i < IdentityIndex.MAX_PENDING; i++) {
+            index.add(source(match("user" + i, null), "handle" + i, described));
+        }
+        assertEquals(IdentityIndex.MAX_PENDING, described.get());
+    }
+
+    @Test
+    public void dropsLeastRecentlySeen() {
+        IdentityIndex index = new IdentityIndex(2);
+        index.add(match("anne", null), null);
+        index.add(match("andy", null), null);
+        index.add(match("anne", null), null);
+        index.add(match("abby", null), null);
+        assertEquals(2, index.size());
+        assertEquals("[abby, anne]", usernames(index.search("a", 10)).toString());
+    }
+}
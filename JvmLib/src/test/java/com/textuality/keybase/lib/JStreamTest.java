@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2014 Tim Bray <tbray@textuality.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.textuality.keybase.lib;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class JStreamTest {
+
+    private static JSONObject extract(String json, String[]... paths) throws IOException, JSONException {
+        return JStream.extract(new StringReader(json), paths);
+    }
+
+    @Test
+    public void extractsOnlyWhatsAsked() throws IOException, JSONException {
+        String json = "{\"them\":{\"basics\":{\"username\":\"tbray\"},\"bulky\":[1,2,3]}," +
+                "\"sigs\":[{\"sig\":\"a\"},{\"sig\":\"b\"}],\"status\":{\"code\":0}}";
+        JSONObject sparse = extract(json, new String[] { "them", "basics", "username" },
+                new String[] { "sigs", "1", "sig" });
+        assertEquals("tbray", JWalk.getString(sparse, "them", "basics", "username"));
+        assertFalse(sparse.getJSONObject("them").has("bulky"));
+        assertFalse(sparse.has("status"));
+        assertEquals("b", sparse.getJSONArray("sigs").getJSONObject(1).getString("sig"));
+    }
+
+    @Test
+    public void numbersAreTypedAsJSONObjectWouldType() throws IOException, JSONException {
+        String json = "{\"int\":42,\"long\":12345678901,\"huge\":123456789012345678901234567890," +
+                "\"negative\":-98765432109876543210,\"real\":1.5e3}";
+        String[][] paths = { { "int" }, { "long" }, { "huge" }, { "negative" }, { "real" } };
+        JSONObject sparse = extract(json, paths);
+        JSONObject full = new JSONObject(json);
+        for (String[] path : paths) {
+            assertEquals(path[0], full.get(path[0]), sparse.get(path[0]));
+        }
+    }
+
+    @Test
+    public void rejectsBadLiterals() throws IOException {
+        for (String literal : new String[] { "12d", "0x10", "NaN", "-", "tru" }) {
+            try {
+                extract("{\"a\":" + literal + "}", new String[] { "a" });
+                fail("accepted " + literal);
+            } catch (JSONException e) {
+                // expected
+            }
+        }
+    }
+}
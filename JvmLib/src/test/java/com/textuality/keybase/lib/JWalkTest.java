@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2014 Tim Bray <tbray@textuality.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.textuality.keybase.lib;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class JWalkTest {
+
+    private static final String JSON =
+            "{\"them\":{\"basics\":{\"username\":\"tbray\",\"uid\":7},\"bits\":\"4096\",\"proofs\":[1,2]}}";
+
+    @Test
+    public void optWalksWithoutThrowing() throws JSONException {
+        JSONObject json = new JSONObject(JSON);
+        assertEquals("tbray", JWalk.optString(json, "them", "basics", "username"));
+        assertEquals("7", JWalk.optString(json, "them", "basics", "uid"));
+        assertNull(JWalk.optString(json, "them", "basics"));
+        assertNull(JWalk.optString(json, "them", "nothing", "username"));
+        assertEquals(4096, JWalk.optInt(json, -1, "them", "bits"));
+        assertEquals(-1, JWalk.optInt(json, -1, "them", "basics", "username"));
+        assertEquals(2, JWalk.optArray(json, "them", "proofs").length());
+        assertNull(JWalk.optArray(json, "them", "basics"));
+    }
+
+    @Test
+    public void compiledPathsAgree() throws JSONException {
+        JSONObject json = new JSONObject(JSON);
+        String[] steps = { "them", "basics", "username" };
+        JWalk.Path path = JWalk.compile(steps);
+        steps[2] = "uid";
+        assertEquals("tbray", path.getString(json));
+        assertEquals("them.basics.username", path.toString());
+        assertEquals(7, JWalk.compile("them", "basics", "uid").getInt(json));
+        try {
+            JWalk.compile("them", "basics", "nothing").getString(json);
+            fail("found nothing");
+        } catch (JSONException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void emptyPathsAreRejected() throws JSONException {
+        JSONObject json = new JSONObject(JSON);
+        try {
+            JWalk.compile();
+            fail("compiled an empty path");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            JWalk.optString(json);
+            fail("walked an empty path");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            JWalk.getString(json);
+            fail("walked an empty path");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
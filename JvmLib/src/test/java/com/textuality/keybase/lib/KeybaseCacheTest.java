@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2014 Tim Bray <tbray@textuality.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.textuality.keybase.lib;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class KeybaseCacheTest {
+
+    private static final String LOOKUP = "_/api/1.0/user/lookup.json?username=";
+    private static final String SIG = "_/api/1.0/sig/get.json?sig_id=";
+
+    private static JSONObject json(String text) throws JSONException {
+        return new JSONObject(text);
+    }
+
+    @Test
+    public void hitsAndMisses() throws JSONException {
+        KeybaseCache cache = new KeybaseCache(10, 60000);
+        assertNull(cache.get(LOOKUP, "tbray"));
+        cache.put(LOOKUP, "tbray", json("{\"them\":{\"id\":\"1\"}}"));
+        assertEquals("1", cache.get(LOOKUP, "tbray").getJSONObject("them").getString("id"));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void callersCantCorruptEntries() throws JSONException {
+        KeybaseCache cache = new KeybaseCache(10, 60000);
+        JSONObject original = json("{\"them\":{\"id\":\"1\",\"list\":[1,2]}}");
+        cache.put(LOOKUP, "tbray", original);
+        original.getJSONObject("them").put("id", "changed by the fetcher");
+
+        JSONObject first = cache.get(LOOKUP, "tbray");
+        first.getJSONObject("them").put("id", "changed by a caller");
+        first.getJSONObject("them").getJSONArray("list").put(3);
+
+        JSONObject second = cache.get(LOOKUP, "tbray");
+        assertEquals("1", second.getJSONObject("them").getString("id"));
+        assertEquals(2, second.getJSONObject("them").getJSONArray("list").length());
+    }
+
+    @Test
+    public void perEndpointTtl() throws JSONException, InterruptedException {
+        KeybaseCache cache = new KeybaseCache(10, 60000).setTtl(SIG, 0).setTtl(LOOKUP, 50);
+        cache.put(SIG, "abc", json("{}"));
+        assertNull(cache.get(SIG, "abc"));
+
+        cache.put(LOOKUP, "tbray", json("{}"));
+        assertNotNull(cache.get(LOOKUP, "tbray"));
+        Thread.sleep(100);
+        assertNull(cache.get(LOOKUP, "tbray"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws JSONException {
+        KeybaseCache cache = new KeybaseCache(2, 60000);
+        cache.put(LOOKUP, "a", json("{}"));
+        cache.put(LOOKUP, "b", json("{}"));
+        cache.get(LOOKUP, "a");
+        cache.put(LOOKUP, "c", json("{}"));
+        assertNotNull(cache.get(LOOKUP, "a"));
+        assertNull(cache.get(LOOKUP, "b"));
+        assertNotNull(cache.get(LOOKUP, "c"));
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2014 Tim Bray <tbray@textuality.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.textuality.keybase.lib;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * An HTTP server on localhost for tests, with handlers added per path
+ */
+public class LocalServer {
+
+    public static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final HttpServer mServer;
+    private final ExecutorService mThreads = Executors.newCachedThreadPool();
+
+    public LocalServer() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.setExecutor(mThreads);
+        mServer.start();
+    }
+
+    public LocalServer handle(String path, HttpHandler handler) {
+        mServer.createContext(path, handler);
+        return this;
+    }
+
+    /**
+     * @return e.g. http://127.0.0.1:43210/path
+     */
+    public String url(String path) {
+        return "http://127.0.0.1:" + mServer.getAddress().getPort() + path;
+    }
+
+    public void stop() {
+        mServer.stop(0);
+        mThreads.shutdownNow();
+    }
+
+    public static void send(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(UTF8);
+        if (contentType != null) {
+            exchange.getResponseHeaders().set("Content-Type", contentType);
+        }
+        exchange.sendResponseHeaders(status, (bytes.length == 0) ? -1 : bytes.length);
+        if (bytes.length > 0) {
+            OutputStream out = exchange.getResponseBody();
+            out.write(bytes);
+            out.close();
+        }
+        exchange.close();
+    }
+
+    /**
+     * Answers every request with the same status and body
+     */
+    public static HttpHandler fixed(final int status, final String contentType, final String body) {
+        return new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                send(exchange, status, contentType, body);
+            }
+        };
+    }
+
+    /**
+     * Answers with a redirect
+     */
+    public static HttpHandler redirect(final int status, final String location) {
+        return new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.getResponseHeaders().set("Location", location);
+                exchange.sendResponseHeaders(status, -1);
+                exchange.close();
+            }
+        };
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2014 Tim Bray <tbray@textuality.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.textuality.keybase.lib;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PlatformTest {
+
+    @After
+    public void tearDown() {
+        Platform.set(null);
+    }
+
+    @Test
+    public void findsJvmPlatform() {
+        Platform.set(null);
+        assertTrue(Platform.get() instanceof JvmPlatform);
+    }
+
+    @Test
+    public void setReplacesPlatform() {
+        final List<String> logged = new ArrayList<String>();
+        Platform.set(new Platform() {
+            @Override
+            public void debug(String tag, String message) {
+                logged.add(tag + ": " + message);
+            }
+        });
+        Platform.get().debug("T", "hello");
+        assertEquals(1, logged.size());
+        assertEquals("T: hello", logged.get(0));
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2014 Tim Bray <tbray@textuality.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.textuality.keybase.lib;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SearchTest {
+
+    private static final String OK = "{\"status\":{\"code\":0},\"them\":{\"id\":\"1\"}}";
+
+    private FakeTransport mTransport;
+
+    @After
+    public void tearDown() {
+        if (mTransport != null) {
+            mTransport.restore();
+        }
+    }
+
+    // redirects the first request to location, and answers anything else with OK
+    private static FakeTransport.Handler redirectTo(final String location) {
+        return new FakeTransport.Handler() {
+            @Override
+            public KeybaseTransport.Response handle(String url, Map<String, String> headers) throws IOException {
+                if (url.contains("redirected")) {
+                    return FakeTransport.response(url, 200, "application/json", OK);
+                }
+                Map<String, String> redirect = new HashMap<String, String>();
+                redirect.put("location", location);
+                return FakeTransport.response(url, 302, redirect, "");
+            }
+        };
+    }
+
+    @Test
+    public void followsRedirects() throws KeybaseException {
+        mTransport = new FakeTransport(redirectTo("/redirected?q=1")).install();
+        JSONObject json = Search.getFromKeybase("_/api/1.0/user/lookup.json?username=", "follows");
+        assertEquals("1", JWalk.optString(json, "them", "id"));
+        assertEquals("https://keybase.io/redirected?q=1", mTransport.getRequests().get(1));
+    }
+
+    @Test
+    public void refusesRedirectsAwayFromHttps() {
+        mTransport = new FakeTransport(redirectTo("http://keybase.io/redirected")).install();
+        try {
+            Search.getFromKeybase("_/api/1.0/user/lookup.json?username=", "downgrades");
+            fail("followed a redirect to http");
+        } catch (KeybaseException e) {
+            assertEquals(1, mTransport.getRequests().size());
+        }
+    }
+
+    @Test
+    public void givesUpAfterTooManyRedirects() {
+        mTransport = new FakeTransport(redirectTo("/again")).install();
+        try {
+            Search.getFromKeybase("_/api/1.0/user/lookup.json?username=", "loops");
+            fail("followed redirects forever");
+        } catch (KeybaseException e) {
+            assertEquals(Search.REDIRECT_TRIES + 1, mTransport.getRequests().size());
+        }
+    }
+
+    private static void assertTooLarge(String[]... wanted) {
+        char[] padding = new char[BodyReader.DEFAULT_MAX_BYTES];
+        Arrays.fill(padding, 'x');
+        String body = "{\"status\":{\"code\":0},\"them\":{\"id\":\"" + new String(padding) + "\"}}";
+        FakeTransport transport = new FakeTransport(FakeTransport.json(body)).install();
+        try {
+            Search.getFromKeybase("_/api/1.0/user/lookup.json?username=", "huge", wanted);
+            fail("read a body bigger than DEFAULT_MAX_BYTES");
+        } catch (KeybaseException e) {
+            assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof BodyReader.TooLargeException);
+        } finally {
+            transport.restore();
+        }
+    }
+
+    @Test
+    public void refusesHugeBodies() {
+        assertTooLarge();
+        assertTooLarge(new String[] { "them", "id" });
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2014 Tim Bray <tbray@textuality.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.textuality.keybase.lib;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+public class SingleFlightTest {
+
+    private final ExecutorService mCallers = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        mCallers.shutdownNow();
+    }
+
+    // work that waits to be released, and counts how often it ran and was interrupted
+    private static class Gate implements Callable<List<String>> {
+        final CountDownLatch mStarted = new CountDownLatch(1);
+        final CountDownLatch mRelease = new CountDownLatch(1);
+        final CountDownLatch mInterrupted = new CountDownLatch(1);
+        final AtomicInteger mRuns = new AtomicInteger();
+
+        @Override
+        public List<String> call() throws InterruptedException {
+            mRuns.incrementAndGet();
+            mStarted.countDown();
+            try {
+                mRelease.await();
+            } catch (InterruptedException e) {
+                mInterrupted.countDown();
+                throw e;
+            }
+            List<String> result = new ArrayList<String>();
+            result.add("done");
+            return result;
+        }
+    }
+
+    private KeybaseFuture<List<String>> caller(final SingleFlight<String, List<String>> flight, final Gate gate) {
+        return KeybaseFuture.submit(new Callable<List<String>>() {
+            @Override
+            public List<String> call() throws Exception {
+                return flight.run("key", gate);
+            }
+        }, mCallers);
+    }
+
+    private static void awaitWaiters(SingleFlight<String, List<String>> flight, Gate gate) throws Exception {
+        assertTrue(gate.mStarted.await(5, TimeUnit.SECONDS));
+        // give the second caller time to join
+        Thread.sleep(100);
+        assertEquals(1, flight.size());
+    }
+
+    @Test
+    public void callersShareOneRun() throws Exception {
+        SingleFlight<String, List<String>> flight = new SingleFlight<String, List<String>>();
+        Gate gate = new Gate();
+        Future<List<String>> a = caller(flight, gate);
+        Future<List<String>> b = caller(flight, gate);
+        awaitWaiters(flight, gate);
+        gate.mRelease.countDown();
+        assertEquals("done", a.get(5, TimeUnit.SECONDS).get(0));
+        assertEquals("done", b.get(5, TimeUnit.SECONDS).get(0));
+        assertEquals(1, gate.mRuns.get());
+        assertEquals(0, flight.size());
+    }
+
+    @Test
+    public void onlyOneCallerGetsTheOriginal() throws Exception {
+        SingleFlight<String, List<String>> flight = new SingleFlight<String, List<String>>() {
+            @Override
+            protected List<String> copy(List<String> result) {
+                return new ArrayList<String>(result);
+            }
+        };
+        Gate gate = new Gate();
+        Future<List<String>> a = caller(flight, gate);
+        Future<List<String>> b = caller(flight, gate);
+        awaitWaiters(flight, gate);
+        gate.mRelease.countDown();
+        List<String> first = a.get(5, TimeUnit.SECONDS);
+        List<String> second = b.get(5, TimeUnit.SECONDS);
+        assertNotSame(first, second);
+        assertEquals(first, second);
+    }
+
+    @Test
+    public void cancellingOneCallerLeavesTheOthers() throws Exception {
+        SingleFlight<String, List<String>> flight = new SingleFlight<String, List<String>>();
+        Gate gate = new Gate();
+        KeybaseFuture<List<String>> first = caller(flight, gate);
+        Future<List<String>> second = caller(flight, gate);
+        awaitWaiters(flight, gate);
+
+        first.cancel(true);
+        gate.mRelease.countDown();
+        assertEquals("done", second.get(5, TimeUnit.SECONDS).get(0));
+        assertEquals(1, gate.mInterrupted.getCount());
+    }
+
+    @Test
+    public void lastCallerLeavingCancelsTheWork() throws Exception {
+        SingleFlight<String, List<String>> flight = new SingleFlight<String, List<String>>();
+        Gate gate = new Gate();
+        KeybaseFuture<List<String>> first = caller(flight, gate);
+        KeybaseFuture<List<String>> second = caller(flight, gate);
+        awaitWaiters(flight, gate);
+
+        first.cancel(true);
+        assertFalse(gate.mInterrupted.await(200, TimeUnit.MILLISECONDS));
+        // not interrupting counts as leaving too
+        second.cancel(false);
+        assertTrue(gate.mInterrupted.await(5, TimeUnit.SECONDS));
+        assertEquals(0, flight.size());
+
+        // and the next request starts afresh
+        Gate next = new Gate();
+        next.mRelease.countDown();
+        assertEquals("done", flight.run("key", next).get(0));
+        assertEquals(1, next.mRuns.get());
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2014 Tim Bray <tbray@textuality.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.textuality.keybase.lib;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class TypeaheadTest {
+
+    private final ScheduledExecutorService mExecutor = Executors.newScheduledThreadPool(4);
+    private final BlockingQueue<String> mHeard = new LinkedBlockingQueue<String>();
+    private IdentityIndex mSavedIndex;
+    private FakeTransport mTransport;
+
+    // records "query: username, username…" or "query: error"
+    private final Typeahead.Listener mListener = new Typeahead.Listener() {
+        @Override
+        public void onResults(String query, List<Match> matches) {
+            StringBuilder heard = new StringBuilder(query + ":");
+            for (Match match : matches) {
+                heard.append(' ').append(match.mUsername);
+            }
+            mHeard.add(heard.toString());
+        }
+
+        @Override
+        public void onError(String query, Exception problem) {
+            mHeard.add(query + ": error");
+        }
+    };
+
+    @Before
+    public void setUp() {
+        mSavedIndex = IdentityIndex.getDefault();
+        IdentityIndex.setDefault(null);
+    }
+
+    @After
+    public void tearDown() {
+        IdentityIndex.setDefault(mSavedIndex);
+        if (mTransport != null) {
+            mTransport.restore();
+        }
+        mExecutor.shutdownNow();
+    }
+
+    // a completion matched, with the given score, on the named component
+    private static String completion(String username, String component, String value) {
+        StringBuilder json = new StringBuilder("{\"components\":{");
+        json.append("\"username\":{\"val\":\"").append(username).append("\",\"score\":")
+                .append(component.equals("username") ? "0.9" : "0").append("},");
+        json.append("\"key_fingerprint\":{\"val\":\"").append(component.equals("key_fingerprint") ? value : "0123abcd")
+                .append("\",\"algo\":1,\"nbits\":2048,\"score\":")
+                .append(component.equals("key_fingerprint") ? "0.5" : "0").append("}");
+        if (!component.equals("username") && !component.equals("key_fingerprint")) {
+            json.append(",\"").append(component).append("\":{\"val\":\"").append(value).append("\",\"score\":0.5}");
+        }
+        return json.append("}}").toString();
+    }
+
+    private static String page(List<String> completions) {
+        StringBuilder json = new StringBuilder("{\"status\":{\"code\":0},\"completions\":[");
+        for (int i = 0; i < completions.size(); i++) {
+            json.append((i == 0) ? "" : ",").append(completions.get(i));
+        }
+        return json.append("]}").toString();
+    }
+
+    private Typeahead typeahead(String body) {
+        mTransport = new FakeTransport(FakeTransport.json(body)).install();
+        return new Typeahead(mExecutor, 0, mListener);
+    }
+
+    private String next() throws InterruptedException {
+        String heard = mHeard.poll(5, TimeUnit.SECONDS);
+        assertNotNull("heard nothing", heard);
+        return heard;
+    }
+
+    @Test
+    public void refinesOnTheFieldsKeybaseMatched() throws InterruptedException {
+        List<String> completions = new ArrayList<String>();
+        completions.add(completion("alice", "reddit", "timreddit"));
+        completions.add(completion("timothy", "username", null));
+        completions.add(completion("bob", "hackernews", "timbo"));
+        Typeahead typeahead = typeahead(page(completions));
+
+        typeahead.update("tim");
+        assertEquals("tim: alice timothy bob", next());
+        typeahead.update("timr");
+        assertEquals("timr: alice", next());
+        typeahead.update("timb");
+        assertEquals("timb: bob", next());
+        assertEquals(1, mTransport.getRequests().size());
+    }
+
+    @Test
+    public void fullPageIsntRefined() throws InterruptedException {
+        List<String> completions = new ArrayList<String>();
+        for (int i = 0; i < Typeahead.AUTOCOMPLETE_PAGE; i++) {
+            completions.add(completion("tim" + i, "username", null));
+        }
+        Typeahead typeahead = typeahead(page(completions));
+
+        typeahead.update("tim");
+        next();
+        typeahead.update("tim1");
+        next();
+        assertEquals(2, mTransport.getRequests().size());
+    }
+
+    @Test
+    public void fingerprintMatchesArentRefined() throws InterruptedException {
+        List<String> completions = new ArrayList<String>();
+        completions.add(completion("carol", "key_fingerprint", "abcd0123"));
+        Typeahead typeahead = typeahead(page(completions));
+
+        typeahead.update("abcd");
+        assertEquals("abcd: carol", next());
+        typeahead.update("abcd0");
+        assertEquals("abcd0: carol", next());
+        assertEquals(2, mTransport.getRequests().size());
+    }
+
+    @Test
+    public void staleResultsArentDelivered() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final String body = page(new ArrayList<String>());
+        mTransport = new FakeTransport(new FakeTransport.Handler() {
+            @Override
+            public KeybaseTransport.Response handle(String url, Map<String, String> headers) throws IOException {
+                if (url.endsWith("q=slow")) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        // cancelled; answer anyway, as a slow server would
+                    }
+                }
+                return FakeTransport.response(url, 200, "application/json", body);
+            }
+        }).install();
+        Typeahead typeahead = new Typeahead(mExecutor, 0, mListener);
+
+        typeahead.update("slow");
+        while (mTransport.getRequests().isEmpty()) {
+            Thread.sleep(10);
+        }
+        typeahead.update("fast");
+        release.countDown();
+        assertEquals("fast:", next());
+        assertNull(mHeard.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void errorsReachTheListener() throws InterruptedException {
+        Typeahead typeahead = typeahead("{\"status\":{\"code\":0},\"completions\":7}");
+        typeahead.update("broken");
+        assertEquals("broken: error", next());
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2014 Tim Bray <tbray@textuality.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.textuality.keybase.lib;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class UserTest {
+
+    private FakeTransport mTransport;
+    private IdentityIndex mSavedIndex;
+
+    @Before
+    public void setUp() {
+        mSavedIndex = IdentityIndex.getDefault();
+        IdentityIndex.setDefault(null);
+        User.setDiskStore(null, 0);
+    }
+
+    @After
+    public void tearDown() {
+        if (mTransport != null) {
+            mTransport.restore();
+        }
+        IdentityIndex.setDefault(mSavedIndex);
+    }
+
+    static String userJson(String username) {
+        return "{\"basics\":{\"username\":\"" + username + "\"},\"proofs_summary\":{\"all\":[]}}";
+    }
+
+    // answers a multi-user lookup with one user per requested name, named as requested
+    private static final FakeTransport.Handler ECHO_USERS = new FakeTransport.Handler() {
+        @Override
+        public KeybaseTransport.Response handle(String url, Map<String, String> headers) throws IOException {
+            String names = URLDecoder.decode(url.substring(url.indexOf('=') + 1), "UTF-8");
+            StringBuilder them = new StringBuilder();
+            for (String name : names.split(",")) {
+                them.append((them.length() == 0) ? "" : ",").append(userJson(name));
+            }
+            return FakeTransport.response(url, 200, "application/json",
+                    "{\"status\":{\"code\":0},\"them\":[" + them + "]}");
+        }
+    };
+
+    @Test
+    public void spellingsOfOneUsernameAreOneLookup() throws KeybaseException {
+        mTransport = new FakeTransport(ECHO_USERS).install();
+        Map<String, User.Result> results = User.findByUsernames(Arrays.asList("TBray", "tbray ", "other"));
+        assertEquals(Arrays.asList("tbray", "other"), new ArrayList<String>(results.keySet()));
+        assertEquals("tbray", results.get("tbray").getUser().getUsername());
+        assertEquals(1, mTransport.getRequests().size());
+    }
+
+    @Test
+    public void fingerprintsAreNormalized() throws KeybaseException {
+        mTransport = new FakeTransport(ECHO_USERS).install();
+        Map<String, User.Result> results = User.findByFingerprints(Arrays.asList("AB CD", "abcd"));
+        assertEquals(Arrays.asList("abcd"), new ArrayList<String>(results.keySet()));
+        assertNotNull(results.get("abcd").getUser());
+    }
+
+    @Test
+    public void batchesShareOnePool() {
+        mTransport = new FakeTransport(ECHO_USERS).install();
+        List<String> names = new ArrayList<String>();
+        for (int i = 0; i < User.LOOKUP_BATCH_SIZE * 3; i++) {
+            names.add("user" + i);
+        }
+        for (int round = 0; round < 3; round++) {
+            assertEquals(names.size(), User.findByUsernames(names).size());
+        }
+
+        // the pool outlives the calls, and doesn’t grow with them
+        int lookupThreads = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("User-lookup-")) {
+                assertTrue(thread.isDaemon());
+                lookupThreads++;
+            }
+        }
+        assertTrue("lookup threads: " + lookupThreads, lookupThreads >= 1 && lookupThreads <= 4);
+    }
+
+    @Test
+    public void interruptedLookupIsntChangedByStragglers() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        mTransport = new FakeTransport(new FakeTransport.Handler() {
+            @Override
+            public KeybaseTransport.Response handle(String url, Map<String, String> headers) throws IOException {
+                // ignore interrupts, like a worker stuck in a read
+                boolean interrupted = false;
+                while (true) {
+                    try {
+                        release.await();
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                KeybaseTransport.Response response = ECHO_USERS.handle(url, headers);
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+                return response;
+            }
+        }).install();
+
+        final List<String> names = new ArrayList<String>();
+        for (int i = 0; i < User.LOOKUP_BATCH_SIZE * 3; i++) {
+            names.add("user" + i);
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(3);
+        final AtomicReference<Map<String, User.Result>> found = new AtomicReference<Map<String, User.Result>>();
+        Thread caller = lookupThread(names, pool, found);
+        caller.start();
+        while (mTransport.getRequests().size() < 3) {
+            Thread.sleep(5);
+        }
+        caller.interrupt();
+        caller.join(5000);
+        Map<String, User.Result> results = found.get();
+        assertNotNull(results);
+        assertEquals(names.size(), results.size());
+        String before = summary(results);
+
+        release.countDown();
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(before, summary(results));
+        for (User.Result result : results.values()) {
+            assertNotNull(result.getProblem());
+        }
+    }
+
+    // a single-user lookup of tbray, with a key
+    private static final FakeTransport.Handler TBRAY = FakeTransport.json("{\"status\":{\"code\":0},\"them\":" +
+            "{\"basics\":{\"username\":\"tbray\"},\"public_keys\":{\"primary\":" +
+            "{\"bundle\":\"KEY\",\"key_fingerprint\":\"abcd\"}},\"proofs_summary\":{\"all\":[]}}}");
+
+    @Test
+    public void keyForUsernameFeedsTheIndex() throws KeybaseException {
+        mTransport = new FakeTransport(TBRAY).install();
+        IdentityIndex index = new IdentityIndex(10);
+        IdentityIndex.setDefault(index);
+        assertEquals("KEY", User.keyForUsername("tbray"));
+        assertEquals(1, index.search("tbr", 10).size());
+    }
+
+    @Test
+    public void keyForUsernameAloneReadsOnlyTheKey() throws KeybaseException {
+        mTransport = new FakeTransport(TBRAY).install();
+        assertEquals("KEY", User.keyForUsername("tbray"));
+    }
+
+    @Test
+    public void keyForUsernameUsesTheCache() throws KeybaseException {
+        mTransport = new FakeTransport(TBRAY).install();
+        Search.setCache(new KeybaseCache(10, 60000));
+        assertEquals("KEY", User.keyForUsername("tbray"));
+        assertEquals("KEY", User.keyForUsername("tbray"));
+        assertEquals(1, mTransport.getRequests().size());
+    }
+
+    private static Thread lookupThread(final List<String> names, final ExecutorService pool,
+                                       final AtomicReference<Map<String, User.Result>> found) {
+        return new Thread(new Runnable() {
+            @Override
+            public void run() {
+                found.set(User.findByUsernames(names, pool));
+            }
+        });
+    }
+
+    private static String summary(Map<String, User.Result> results) {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, User.Result> entry : results.entrySet()) {
+            sb.append(entry.getKey()).append('=').append(System.identityHashCode(entry.getValue())).append(' ');
+        }
+        return sb.toString();
+    }
+}
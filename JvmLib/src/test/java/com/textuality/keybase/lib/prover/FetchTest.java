@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2014 Tim Bray <tbray@textuality.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.textuality.keybase.lib.prover;
+
+import com.textuality.keybase.lib.FakeTransport;
+import com.textuality.keybase.lib.KeybaseTransport;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class FetchTest {
+
+    private FakeTransport mTransport;
+
+    @After
+    public void tearDown() {
+        if (mTransport != null) {
+            mTransport.restore();
+        }
+    }
+
+    // "/from" redirects to location; everything else is a small document
+    private FakeTransport install(final String location) {
+        mTransport = new FakeTransport(new FakeTransport.Handler() {
+            @Override
+            public KeybaseTransport.Response handle(String url, Map<String, String> headers) throws IOException {
+                if (!url.endsWith("/from")) {
+                    return FakeTransport.response(url, 200, "text/plain", "proof");
+                }
+                Map<String, String> redirect = new HashMap<String, String>();
+                redirect.put("location", location);
+                return FakeTransport.response(url, 302, redirect, "");
+            }
+        }).install();
+        return mTransport;
+    }
+
+    @Test
+    public void followsHttpsRedirects() {
+        install("https://elsewhere.example.com/to");
+        Fetch fetch = new Fetch("https://follows.example.com/from");
+        assertNull(fetch.problem());
+        assertEquals("proof", fetch.getBody());
+        assertEquals("https://elsewhere.example.com/to", fetch.getActualUrl());
+    }
+
+    @Test
+    public void refusesHttpsToHttp() {
+        install("http://downgrades.example.com/to");
+        Fetch fetch = new Fetch("https://downgrades.example.com/from");
+        assertNotNull(fetch.problem());
+        assertNull(fetch.getBody());
+        assertEquals(1, mTransport.getRequests().size());
+    }
+
+    @Test
+    public void followsHttpToHttps() {
+        install("https://upgrades.example.com/to");
+        Fetch fetch = new Fetch("http://upgrades.example.com/from");
+        assertNull(fetch.problem());
+        assertEquals("proof", fetch.getBody());
+    }
+}
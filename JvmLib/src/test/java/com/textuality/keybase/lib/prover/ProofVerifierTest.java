@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2014 Tim Bray <tbray@textuality.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.textuality.keybase.lib.prover;
+
+import com.textuality.keybase.lib.FakeTransport;
+import com.textuality.keybase.lib.IdentityIndex;
+import com.textuality.keybase.lib.KeybaseException;
+import com.textuality.keybase.lib.KeybaseTransport;
+import com.textuality.keybase.lib.User;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ProofVerifierTest {
+
+    private static final String MESSAGE = "-----BEGIN PGP MESSAGE-----signed-----END PGP MESSAGE-----";
+
+    private FakeTransport mTransport;
+    private SigStore mSavedSigStore;
+    private ProofCache mSavedProofCache;
+    private IdentityIndex mSavedIndex;
+
+    @Before
+    public void setUp() {
+        mSavedSigStore = Prover.getSigStore();
+        mSavedProofCache = Fetch.getProofCache();
+        mSavedIndex = IdentityIndex.getDefault();
+        Prover.setSigStore(null);
+        Fetch.setProofCache(null);
+        IdentityIndex.setDefault(null);
+    }
+
+    @After
+    public void tearDown() {
+        if (mTransport != null) {
+            mTransport.restore();
+        }
+        Prover.setSigStore(mSavedSigStore);
+        Fetch.setProofCache(mSavedProofCache);
+        IdentityIndex.setDefault(mSavedIndex);
+    }
+
+    private static JSONObject proof(String type, String nametag, String sigId, String proofUrl) throws JSONException {
+        return new JSONObject().put("proof_type", type).put("nametag", nametag).put("sig_id", sigId)
+                .put("proof_id", sigId).put("proof_url", proofUrl).put("human_url", proofUrl)
+                .put("service_url", proofUrl);
+    }
+
+    private static String lookup(JSONObject... proofs) throws JSONException {
+        JSONArray all = new JSONArray();
+        for (JSONObject proof : proofs) {
+            all.put(proof);
+        }
+        JSONObject them = new JSONObject()
+                .put("basics", new JSONObject().put("username", "tbray"))
+                .put("public_keys", new JSONObject().put("primary", new JSONObject().put("key_fingerprint", "abcd")))
+                .put("proofs_summary", new JSONObject().put("all", all));
+        return new JSONObject().put("status", new JSONObject().put("code", 0)).put("them", them).toString();
+    }
+
+    // sig/get.json for sig "<host>~<n>", pointing at a document on that host
+    private static String sig(String sigId) throws JSONException {
+        String host = sigId.substring(0, sigId.indexOf('~'));
+        JSONObject sig = new JSONObject().put("payload_json", "payload").put("sig", MESSAGE)
+                .put("sig_id_short", "short").put("api_url", "https://" + host + "/.well-known/keybase.txt?" + sigId);
+        return new JSONObject().put("status", new JSONObject().put("code", 0))
+                .put("sigs", new JSONArray().put(sig)).toString();
+    }
+
+    private abstract static class Routes implements FakeTransport.Handler {
+        private final String mLookup;
+
+        Routes(String lookup) {
+            mLookup = lookup;
+        }
+
+        abstract KeybaseTransport.Response proofDocument(String url) throws IOException;
+
+        @Override
+        public KeybaseTransport.Response handle(String url, Map<String, String> headers) throws IOException {
+            try {
+                if (url.contains("user/lookup.json")) {
+                    return FakeTransport.response(url, 200, "application/json", mLookup);
+                } else if (url.contains("sig/get.json")) {
+                    return FakeTransport.response(url, 200, "application/json",
+                            sig(URLDecoder.decode(url.substring(url.indexOf("sig_id=") + 7), "UTF-8")));
+                }
+            } catch (JSONException e) {
+                throw new IOException(e);
+            }
+            return proofDocument(url);
+        }
+    }
+
+    private static final ProofVerifier.Checker SIGNS_EVERYTHING = new ProofVerifier.Checker() {
+        @Override
+        public String checkSignature(String pgpMessage, String fingerprint) {
+            return "payload";
+        }
+        @Override
+        public List<List<byte[]>> fetchDnsTxt(String domain) {
+            return null;
+        }
+        @Override
+        public InputStream rawMessageBytes(String pgpMessage) {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+    };
+
+    @Test
+    public void pacesByTheHostActuallyFetched() throws KeybaseException, JSONException {
+        // both proofs claim the same proof_url host, but their documents are on different hosts,
+        //  so a per-host limit of 1 mustn’t keep them from being fetched at the same time
+        final CyclicBarrier bothFetching = new CyclicBarrier(2);
+        mTransport = new FakeTransport(new Routes(lookup(
+                proof("generic_web_site", "a.example", "a.example~1", "https://proofs.example/a"),
+                proof("generic_web_site", "b.example", "b.example~1", "https://proofs.example/b"))) {
+            @Override
+            KeybaseTransport.Response proofDocument(String url) throws IOException {
+                try {
+                    bothFetching.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                } catch (BrokenBarrierException e) {
+                    throw new IOException(e);
+                } catch (TimeoutException e) {
+                    throw new IOException("fetches were serialized");
+                }
+                return FakeTransport.response(url, 200, "text/plain", MESSAGE);
+            }
+        }).install();
+
+        ProofVerifier.Report report = new ProofVerifier(SIGNS_EVERYTHING, null, 1).verify(User.findByUsername("tbray"));
+        assertEquals(2, report.getOutcomes().size());
+        for (ProofVerifier.Outcome outcome : report.getOutcomes()) {
+            assertTrue(outcome.getLog().toString(), outcome.isVerified());
+        }
+    }
+
+    @Test
+    public void limitsFetchesPerHost() throws KeybaseException, JSONException {
+        final int[] inFlight = { 0, 0 };
+        mTransport = new FakeTransport(new Routes(lookup(
+                proof("generic_web_site", "a.example", "a.example~1", "https://a.example/"),
+                proof("generic_web_site", "a.example", "a.example~2", "https://a.example/"),
+                proof("generic_web_site", "a.example", "a.example~3", "https://a.example/"))) {
+            @Override
+            KeybaseTransport.Response proofDocument(String url) throws IOException {
+                synchronized (inFlight) {
+                    inFlight[0]++;
+                    inFlight[1] = Math.max(inFlight[1], inFlight[0]);
+                }
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                synchronized (inFlight) {
+                    inFlight[0]--;
+                }
+                return FakeTransport.response(url, 200, "text/plain", MESSAGE);
+            }
+        }).install();
+
+        ProofVerifier.Report report = new ProofVerifier(SIGNS_EVERYTHING, null, 1).verify(User.findByUsername("tbray"));
+        assertTrue(report.allVerified());
+        assertEquals(1, inFlight[1]);
+    }
+
+    @Test
+    public void closesRawMessageStream() throws KeybaseException, JSONException {
+        mTransport = new FakeTransport(new Routes(lookup(
+                proof("twitter", "tbray", "twitter.com~1", "https://twitter.com/tbray/status/1"))) {
+            @Override
+            KeybaseTransport.Response proofDocument(String url) {
+                return FakeTransport.response(url, 200, "text/html",
+                        "<html><head><title>short</title></head><body></body></html>");
+            }
+        }).install();
+
+        final AtomicBoolean closed = new AtomicBoolean();
+        final List<String> asked = new ArrayList<String>();
+        ProofVerifier.Checker checker = new ProofVerifier.Checker() {
+            @Override
+            public String checkSignature(String pgpMessage, String fingerprint) {
+                return "payload";
+            }
+            @Override
+            public List<List<byte[]>> fetchDnsTxt(String domain) {
+                return null;
+            }
+            @Override
+            public InputStream rawMessageBytes(String pgpMessage) {
+                asked.add(pgpMessage);
+                return new ByteArrayInputStream(new byte[] { 1, 2, 3 }) {
+                    @Override
+                    public void close() {
+                        closed.set(true);
+                    }
+                };
+            }
+        };
+        ProofVerifier.Report report = new ProofVerifier(checker, null, 4).verify(User.findByUsername("tbray"));
+        assertEquals(1, asked.size());
+        assertTrue(closed.get());
+        assertFalse(report.allVerified());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void perHostLimitMustAllowAFetch() {
+        new ProofVerifier(SIGNS_EVERYTHING, null, 0);
+    }
+}
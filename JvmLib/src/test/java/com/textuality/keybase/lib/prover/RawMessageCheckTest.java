@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2014 Tim Bray <tbray@textuality.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.textuality.keybase.lib.prover;
+
+import com.textuality.keybase.lib.Proof;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RawMessageCheckTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Test
+    public void base64PrefixAgreesWithEncoder() {
+        Random random = new Random(42);
+        for (int length = 0; length <= 35; length++) {
+            byte[] bytes = new byte[length];
+            random.nextBytes(bytes);
+            String encoded = Base64.getUrlEncoder().encodeToString(bytes);
+            for (int end = 0; end <= encoded.length(); end++) {
+                String prefix = encoded.substring(0, end);
+                assertTrue(prefix, Prover.base64UrlStartsWith(bytes, length, prefix));
+                if (end > 0) {
+                    // each character is checked, including the padding
+                    char last = encoded.charAt(end - 1);
+                    String wrong = prefix.substring(0, end - 1) + (last == 'A' ? 'B' : 'A');
+                    assertFalse(wrong, Prover.base64UrlStartsWith(bytes, length, wrong));
+                }
+            }
+            assertFalse(Prover.base64UrlStartsWith(bytes, length, encoded + "A"));
+        }
+    }
+
+    @Test
+    public void base64PrefixOnlyReadsLength() {
+        byte[] bytes = { 1, 2, 3, 4, 5, 6 };
+        String encoded = Base64.getUrlEncoder().encodeToString(Arrays.copyOf(bytes, 4));
+        assertTrue(Prover.base64UrlStartsWith(bytes, 4, encoded));
+        assertFalse(Prover.base64UrlStartsWith(bytes, 6, encoded));
+    }
+
+    private static Prover checker(String message) throws Exception {
+        JSONObject json = new JSONObject().put("proof_type", "reddit").put("nametag", "timbray")
+                .put("sig_id", "sig").put("proof_id", "sig");
+        Prover prover = new Reddit(new Proof(json));
+        byte[] hash = MessageDigest.getInstance("SHA-256").digest(message.getBytes(UTF8));
+        prover.mShortenedMessageHash = Base64.getUrlEncoder().encodeToString(hash).substring(0, 27);
+        return prover;
+    }
+
+    @Test
+    public void checksEachWayAlike() throws Exception {
+        Prover prover = checker("signed message");
+        byte[] right = "signed message".getBytes(UTF8);
+        byte[] wrong = "signed massage".getBytes(UTF8);
+        assertTrue(prover.checkRawMessageBytes(new ByteArrayInputStream(right)));
+        assertTrue(prover.checkRawMessageBytes(ByteBuffer.wrap(right)));
+        assertFalse(prover.checkRawMessageBytes(new ByteArrayInputStream(wrong)));
+        assertFalse(prover.checkRawMessageBytes(ByteBuffer.wrap(wrong)));
+
+        // the buffer is read from position to limit, and left as it was
+        ByteBuffer framed = ByteBuffer.wrap("xxsigned messageyy".getBytes(UTF8));
+        framed.position(2).limit(16);
+        assertTrue(prover.checkRawMessageBytes(framed));
+        assertEquals(2, framed.position());
+        assertEquals(16, framed.limit());
+    }
+
+    @Test
+    public void batchResultsStayInOrder() throws Exception {
+        List<Prover> provers = new ArrayList<Prover>();
+        List<ByteBuffer> messages = new ArrayList<ByteBuffer>();
+        for (int i = 0; i < 50; i++) {
+            provers.add(checker("message " + i));
+            // every third one gets someone else’s message
+            String sent = (i % 3 == 0) ? "message " + (i + 1) : "message " + i;
+            messages.add(ByteBuffer.wrap(sent.getBytes(UTF8)));
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            boolean[] pooled = Prover.checkRawMessageBytes(provers, messages, pool);
+            boolean[] own = Prover.checkRawMessageBytes(provers, messages);
+            for (int i = 0; i < provers.size(); i++) {
+                assertEquals("prover " + i, i % 3 != 0, pooled[i]);
+                assertEquals("prover " + i, i % 3 != 0, own[i]);
+            }
+            // a caller’s executor is left running
+            assertFalse(pool.isShutdown());
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(0, Prover.checkRawMessageBytes(new ArrayList<Prover>(), new ArrayList<ByteBuffer>()).length);
+    }
+
+    @Test
+    public void batchesShareOnePool() throws Exception {
+        List<Prover> provers = new ArrayList<Prover>();
+        List<ByteBuffer> messages = new ArrayList<ByteBuffer>();
+        for (int i = 0; i < 20; i++) {
+            provers.add(checker("message"));
+            messages.add(ByteBuffer.wrap("message".getBytes(UTF8)));
+        }
+        for (int round = 0; round < 3; round++) {
+            Prover.checkRawMessageBytes(provers, messages);
+        }
+
+        // one core means no pool at all; otherwise it outlives the calls and doesn’t grow with them
+        int cores = Runtime.getRuntime().availableProcessors();
+        int checkThreads = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("Prover-check-")) {
+                assertTrue(thread.isDaemon());
+                checkThreads++;
+            }
+        }
+        assertTrue("check threads: " + checkThreads, (cores == 1) ? checkThreads == 0 :
+                (checkThreads >= 1 && checkThreads <= cores));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void batchNeedsAMessagePerProver() throws Exception {
+        List<Prover> provers = new ArrayList<Prover>();
+        provers.add(checker("one"));
+        Prover.checkRawMessageBytes(provers, new ArrayList<ByteBuffer>());
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2014 Tim Bray <tbray@textuality.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.textuality.keybase.lib.prover;
+
+import com.textuality.keybase.lib.FakeTransport;
+import com.textuality.keybase.lib.Proof;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class SigStoreTest {
+
+    private FakeTransport mTransport;
+    private SigStore mSavedSigStore;
+
+    @Before
+    public void setUp() {
+        mSavedSigStore = Prover.getSigStore();
+    }
+
+    @After
+    public void tearDown() {
+        if (mTransport != null) {
+            mTransport.restore();
+        }
+        Prover.setSigStore(mSavedSigStore);
+    }
+
+    private static JSONObject sig(String sigId) throws JSONException {
+        return new JSONObject().put("sig_id", sigId).put("payload_json", "payload").put("sig", "message")
+                .put("sig_id_short", "short").put("seqno", 12);
+    }
+
+    @Test
+    public void callersGetCopies() throws JSONException {
+        SigStore store = new SigStore(10, null);
+        JSONObject put = store.put("a", sig("a"));
+        assertFalse(put.has("seqno"));
+        put.put("sig", "changed");
+
+        JSONObject got = store.get("a");
+        assertEquals("message", got.getString("sig"));
+        got.remove("sig");
+        assertEquals("message", store.get("a").getString("sig"));
+    }
+
+    private static String sigGet(String sigId) throws JSONException {
+        return new JSONObject().put("status", new JSONObject().put("code", 0))
+                .put("sigs", new JSONArray().put(sig(sigId))).toString();
+    }
+
+    private static Prover prover() throws Exception {
+        return new Reddit(new Proof(new JSONObject().put("proof_type", "reddit").put("nametag", "timbray")
+                .put("sig_id", "wanted").put("proof_id", "wanted")));
+    }
+
+    @Test
+    public void storesOnlyTheSigAskedFor() throws Exception {
+        SigStore store = new SigStore(10, null);
+        Prover.setSigStore(store);
+
+        mTransport = new FakeTransport(FakeTransport.json(sigGet("other"))).install();
+        prover().readSig("wanted");
+        assertNull(store.get("wanted"));
+        mTransport.restore();
+
+        mTransport = new FakeTransport(FakeTransport.json(sigGet("wanted"))).install();
+        prover().readSig("wanted");
+        assertEquals("payload", store.get("wanted").getString("payload_json"));
+
+        // answered from the store from now on
+        prover().readSig("wanted");
+        assertEquals(1, mTransport.getRequests().size());
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2014 Tim Bray <tbray@textuality.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.textuality.keybase.lib;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Reads HTTP response bodies, for the Keybase API and proof fetches alike.
+ *
+ * When the Content-Length is known the body is read straight into an array of exactly that
+ *  size, if it’s not too big.  Otherwise it goes into a scratch buffer that belongs to the
+ *  calling thread and is kept between calls, so reading a body doesn’t mean growing a fresh
+ *  buffer a kilobyte at a time.  Text is decoded in the charset the response declares, or
+ *  UTF-8, never the platform default.
+ *
+ * Every read has a maxBytes limit.  A body that declares, or turns out to have, more bytes
+ *  than that isn’t read any further, and a TooLargeException is thrown.
+ */
+public class BodyReader {
+
+    public static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The most that getFromKeybase() will read of a keybase.io response
+     */
+    public static final int DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+    private static final int SCRATCH_SIZE = 16 * 1024;
+    // a thread keeps its scratch buffer only up to this size, rather than hang on to a big one
+    private static final int MAX_SCRATCH_KEPT = 256 * 1024;
+    // a Content-Length is trusted this far; past it, the array grows as bytes actually arrive
+    private static final int MAX_PRESIZE = 1024 * 1024;
+    // some VMs can’t allocate arrays quite as long as Integer.MAX_VALUE
+    private static final int MAX_ARRAY = Integer.MAX_VALUE - 8;
+
+    private static final ThreadLocal<byte[]> sScratch = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[SCRATCH_SIZE];
+        }
+    };
+
+    /**
+     * Thrown when a body is bigger than the caller is prepared to read
+     */
+    public static class TooLargeException extends IOException {
+        private static final long serialVersionUID = 3807129458235617013L;
+
+        TooLargeException(int maxBytes) {
+            super("Body is larger than " + maxBytes + " bytes");
+        }
+    }
+
+    /**
+     * @param maxBytes the most body to read
+     * @return the whole body, decoded per its Content-Type
+     */
+    public static String readString(KeybaseTransport.Response response, int maxBytes) throws IOException {
+        return readString(response.getBody(), contentLength(response), maxBytes, charset(response));
+    }
+
+    /**
+     * @param maxBytes the most body to read
+     * @return the whole body, as undecoded bytes
+     */
+    public static ByteBuffer readBuffer(KeybaseTransport.Response response, int maxBytes) throws IOException {
+        return readBuffer(response.getBody(), contentLength(response), maxBytes);
+    }
+
+    /**
+     * @param contentLength the expected length, or -1 if unknown
+     * @param maxBytes the most body to read
+     */
+    public static String readString(InputStream in, int contentLength, int maxBytes, Charset charset)
+            throws IOException {
+        if (contentLength >= 0) {
+            ByteBuffer bytes = readBuffer(in, contentLength, maxBytes);
+            return new String(bytes.array(), 0, bytes.limit(), charset);
+        }
+        ByteBuffer bytes = fill(in, sScratch.get(), maxBytes);
+        keepScratch(bytes.array());
+        return new String(bytes.array(), 0, bytes.limit(), charset);
+    }
+
+    /**
+     * @param contentLength the expected length, or -1 if unknown
+     * @param maxBytes the most body to read
+     * @return the body; the buffer is backed by an array whose length may exceed limit()
+     */
+    public static ByteBuffer readBuffer(InputStream in, int contentLength, int maxBytes) throws IOException {
+        if (contentLength > maxBytes) {
+            throw new TooLargeException(maxBytes);
+        }
+        if (contentLength >= 0) {
+            // +1 so that a correct Content-Length never triggers a grow to discover EOF
+            return fill(in, new byte[Math.min(contentLength, MAX_PRESIZE) + 1], maxBytes);
+        }
+        ByteBuffer bytes = fill(in, sScratch.get(), maxBytes);
+        keepScratch(bytes.array());
+        return ByteBuffer.wrap(Arrays.copyOf(bytes.array(), bytes.limit()));
+    }
+
+    // reads to the end into bytes, growing it as needed; the result may be backed by a new array
+    private static ByteBuffer fill(InputStream in, byte[] bytes, int maxBytes) throws IOException {
+        int length = 0;
+        int count;
+        while ((count = in.read(bytes, length, bytes.length - length)) != -1) {
+            length += count;
+            if (length > maxBytes) {
+                throw new TooLargeException(maxBytes);
+            }
+            if (length == bytes.length) {
+                // no bigger than it takes to notice a body one byte too long
+                long grown = Math.min(bytes.length * 2L, Math.min(maxBytes + 1L, MAX_ARRAY));
+                if (grown <= bytes.length) {
+                    throw new TooLargeException(maxBytes);
+                }
+                bytes = Arrays.copyOf(bytes, (int) grown);
+            }
+        }
+        return ByteBuffer.wrap(bytes, 0, length);
+    }
+
+    private static void keepScratch(byte[] scratch) {
+        if (scratch.length <= MAX_SCRATCH_KEPT) {
+            sScratch.set(scratch);
+        }
+    }
+
+    /**
+     * @return the declared Content-Length, or -1; also -1 if the body is still encoded, since
+     *  then the length isn’t that of what will be read
+     */
+    public static int contentLength(KeybaseTransport.Response response) {
+        String encoding = response.getHeader("Content-Encoding");
+        if (encoding != null && !encoding.trim().equalsIgnoreCase("identity")) {
+            return -1;
+        }
+        String length = response.getHeader("Content-Length");
+        if (length != null) {
+            try {
+                return Integer.parseInt(length.trim());
+            } catch (NumberFormatException e) {
+                // unknown
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the charset named in the Content-Type, or UTF-8
+     */
+    public static Charset charset(KeybaseTransport.Response response) {
+        String type = response.getHeader("Content-Type");
+        if (type != null) {
+            int at = type.toLowerCase(Locale.US).indexOf("charset=");
+            if (at != -1) {
+                String name = type.substring(at + "charset=".length());
+                int end = name.indexOf(';');
+                if (end != -1) {
+                    name = name.substring(0, end);
+                }
+                name = name.trim().replace("\"", "");
+                try {
+                    return Charset.forName(name);
+                } catch (IllegalArgumentException e) {
+                    // unknown or malformed name, fall through
+                }
+            }
+        }
+        return UTF8;
+    }
+
+    /**
+     * Reads at most a fixed number of bytes, then reports end-of-stream; isTruncated() says
+     *  whether there was more
+     */
+    public static class LimitedInputStream extends FilterInputStream {
+        private long mRemaining;
+        private boolean mTruncated = false;
+
+        public LimitedInputStream(InputStream in, long limit) {
+            super(in);
+            mRemaining = limit;
+        }
+
+        public boolean isTruncated() {
+            return mTruncated;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return (read(one, 0, 1) == -1) ? -1 : (one[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mRemaining <= 0) {
+                // is there really more?
+                if (!mTruncated && in.read() != -1) {
+                    mTruncated = true;
+                }
+                return -1;
+            }
+            int count = in.read(b, off, (int) Math.min(len, mRemaining));
+            if (count > 0) {
+                mRemaining -= count;
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(Math.min(n, mRemaining));
+            mRemaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), mRemaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2014 Tim Bray <tbray@textuality.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.textuality.keybase.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Persistent string store that survives process restarts: an append-only data file plus a
+ *  memory-mapped hash index.  A value can be filed under several keys, for example a user
+ *  under both username and fingerprint.
+ *
+ * Nothing is read at construction time; the first get() or put() maps the index, which is
+ *  all a warm start costs.  If the process died between appending a record and indexing it,
+ *  the unindexed tail of the data file is picked up then too.
+ *
+ * Data record: [long storedAt][short keyCount]([short len][utf-8 key])*[int len][utf-8 value]
+ * Index: [int magic][int capacity][int count][long indexedLength] then capacity slots of
+ *  [long keyHash][long recordOffset + 1], zero meaning empty; linear probing.
+ */
+public class DiskStore {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int MAGIC = 0x4b425331; // KBS1
+    private static final int HEADER_SIZE = 20;
+    private static final int SLOT_SIZE = 16;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final File mDataFile;
+    private final File mIndexFile;
+    private RandomAccessFile mData = null;
+    private RandomAccessFile mIndex = null;
+    private MappedByteBuffer mSlots;
+    private int mCapacity;
+    private int mCount;
+
+    /**
+     * @param dir where the files live; created if necessary
+     * @param name base name for the .dat and .idx files
+     */
+    public DiskStore(File dir, String name) {
+        mDataFile = new File(dir, name + ".dat");
+        mIndexFile = new File(dir, name + ".idx");
+    }
+
+    /**
+     * @param key the key
+     * @param maxAge in milliseconds; older values are treated as missing
+     * @return the most recent value stored under the key, or null
+     */
+    public synchronized String get(String key, long maxAge) throws IOException {
+        open();
+        long offset = lookup(hash(key));
+        if (offset < 0) {
+            return null;
+        }
+        Record record = readRecord(offset, mData.length());
+        if (record == null || !record.hasKey(key) ||
+                record.mStoredAt < System.currentTimeMillis() - maxAge) {
+            return null;
+        }
+        return record.mValue;
+    }
+
+    /**
+     * Appends a value and files it under all the given keys
+     */
+    public synchronized void put(String value, String... keys) throws IOException {
+        open();
+        long offset = mData.length();
+        mData.seek(offset);
+        mData.write(encode(System.currentTimeMillis(), value, keys));
+        for (String key : keys) {
+            index(hash(key), offset);
+        }
+        mSlots.putLong(12, mData.length());
+    }
+
+    public synchronized void close() throws IOException {
+        if (mData != null) {
+            mSlots.force();
+            mIndex.close();
+            mData.close();
+            mData = null;
+            mIndex = null;
+            mSlots = null;
+        }
+    }
+
+    private void open() throws IOException {
+        if (mData != null) {
+            return;
+        }
+        File dir = mDataFile.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can’t create " + dir);
+        }
+        // a half-open store would leave the fields inconsistent, so it’s all or nothing
+        boolean opened = false;
+        try {
+            mData = new RandomAccessFile(mDataFile, "rw");
+            mIndex = new RandomAccessFile(mIndexFile, "rw");
+            mapIndex();
+            opened = true;
+        } finally {
+            if (!opened) {
+                abandon();
+            }
+        }
+    }
+
+    private void mapIndex() throws IOException {
+        long indexed = 0;
+        if (mIndex.length() >= HEADER_SIZE && mIndex.readInt() == MAGIC) {
+            mCapacity = mIndex.readInt();
+            mCount = mIndex.readInt();
+            indexed = mIndex.readLong();
+            if (mCapacity <= 0 || mIndex.length() != HEADER_SIZE + (long) mCapacity * SLOT_SIZE ||
+                    indexed > mData.length()) {
+                indexed = -1;
+            }
+        } else {
+            indexed = -1;
+        }
+
+        if (indexed < 0) {
+            // no usable index, build one from scratch
+            mCapacity = INITIAL_CAPACITY;
+            mCount = 0;
+            mIndex.setLength(0);
+            mIndex.setLength(HEADER_SIZE + (long) mCapacity * SLOT_SIZE);
+            indexed = 0;
+        }
+        mSlots = mIndex.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mIndex.length());
+        mSlots.putInt(0, MAGIC);
+        mSlots.putInt(4, mCapacity);
+        mSlots.putInt(8, mCount);
+
+        // catch up with records that made it into the data file but not the index
+        long end = mData.length();
+        while (indexed < end) {
+            Record record = readRecord(indexed, end);
+            if (record == null) {
+                // torn write at the tail
+                mData.setLength(indexed);
+                break;
+            }
+            for (String key : record.mKeys) {
+                index(hash(key), indexed);
+            }
+            indexed = record.mNext;
+        }
+        mSlots.putLong(12, indexed);
+    }
+
+    // back to the unopened state, so that the next call tries again from scratch
+    private void abandon() {
+        closeQuietly(mIndex);
+        closeQuietly(mData);
+        mData = null;
+        mIndex = null;
+        mSlots = null;
+    }
+
+    private static void closeQuietly(RandomAccessFile file) {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                // nothing to be done
+            }
+        }
+    }
+
+    private long lookup(long hash) {
+        int slot = firstSlot(hash, mCapacity);
+        while (true) {
+            int at = HEADER_SIZE + slot * SLOT_SIZE;
+            long offset = mSlots.getLong(at + 8);
+            if (offset == 0) {
+                return -1;
+            }
+            if (mSlots.getLong(at) == hash) {
+                return offset - 1;
+            }
+            slot = (slot + 1) % mCapacity;
+        }
+    }
+
+    private void index(long hash, long offset) throws IOException {
+        if ((mCount + 1) * 2 > mCapacity) {
+            grow();
+        }
+        if (insert(mSlots, mCapacity, hash, offset + 1)) {
+            mCount++;
+            mSlots.putInt(8, mCount);
+        }
+    }
+
+    // returns true if a new slot was used, false if an existing key was overwritten
+    private static boolean insert(ByteBuffer slots, int capacity, long hash, long storedOffset) {
+        int slot = firstSlot(hash, capacity);
+        while (true) {
+            int at = HEADER_SIZE + slot * SLOT_SIZE;
+            long existing = slots.getLong(at + 8);
+            if (existing == 0 || slots.getLong(at) == hash) {
+                slots.putLong(at, hash);
+                slots.putLong(at + 8, storedOffset);
+                return existing == 0;
+            }
+            slot = (slot + 1) % capacity;
+        }
+    }
+
+    private void grow() throws IOException {
+        int capacity = mCapacity * 2;
+        ByteBuffer slots = ByteBuffer.allocate(HEADER_SIZE + capacity * SLOT_SIZE);
+        for (int slot = 0; slot < mCapacity; slot++) {
+            int at = HEADER_SIZE + slot * SLOT_SIZE;
+            long storedOffset = mSlots.getLong(at + 8);
+            if (storedOffset != 0) {
+                insert(slots, capacity, mSlots.getLong(at), storedOffset);
+            }
+        }
+        slots.putInt(0, MAGIC);
+        slots.putInt(4, capacity);
+        slots.putInt(8, mCount);
+        slots.putLong(12, mSlots.getLong(12));
+
+        mIndex.setLength(slots.capacity());
+        mSlots = mIndex.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, slots.capacity());
+        slots.rewind();
+        mSlots.put(slots);
+        mCapacity = capacity;
+    }
+
+    private static int firstSlot(long hash, int capacity) {
+        return (int) ((hash & Long.MAX_VALUE) % capacity);
+    }
+
+    // 64-bit FNV-1a
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static byte[] encode(long storedAt, String value, String... keys) {
+        byte[][] keyBytes = new byte[keys.length][];
+        int size = 8 + 2 + 4;
+        for (int i = 0; i < keys.length; i++) {
+            keyBytes[i] = keys[i].getBytes(UTF8);
+            size += 2 + keyBytes[i].length;
+        }
+        byte[] valueBytes = value.getBytes(UTF8);
+        size += valueBytes.length;
+
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.putLong(storedAt);
+        buf.putShort((short) keys.length);
+        for (byte[] key : keyBytes) {
+            buf.putShort((short) key.length);
+            buf.put(key);
+        }
+        buf.putInt(valueBytes.length);
+        buf.put(valueBytes);
+        return buf.array();
+    }
+
+    // returns null if the record is cut off by end
+    private Record readRecord(long offset, long end) throws IOException {
+        if (offset + 10 > end) {
+            return null;
+        }
+        mData.seek(offset);
+        Record record = new Record();
+        record.mStoredAt = mData.readLong();
+        int keyCount = mData.readUnsignedShort();
+        long position = offset + 10;
+        record.mKeys = new String[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            if (position + 2 > end) {
+                return null;
+            }
+            int length = mData.readUnsignedShort();
+            position += 2 + length;
+            if (position > end) {
+                return null;
+            }
+            byte[] key = new byte[length];
+            mData.readFully(key);
+            record.mKeys[i] = new String(key, UTF8);
+        }
+        if (position + 4 > end) {
+            return null;
+        }
+        int length = mData.readInt();
+        position += 4 + length;
+        if (length < 0 || position > end) {
+            return null;
+        }
+        byte[] value = new byte[length];
+        mData.readFully(value);
+        record.mValue = new String(value, UTF8);
+        record.mNext = position;
+        return record;
+    }
+
+    private static class Record {
+        long mStoredAt;
+        String[] mKeys;
+        String mValue;
+        long mNext;
+
+        boolean hasKey(String key) {
+            for (String k : mKeys) {
+                if (k.equals(key)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
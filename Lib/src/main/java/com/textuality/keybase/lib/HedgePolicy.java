@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2014 Tim Bray <tbray@textuality.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.textuality.keybase.lib;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Hedged requests, for cutting tail latency on idempotent reads.  If a request hasn’t finished
+ *  after a delay, a duplicate is sent; whichever finishes first wins and the other is cancelled.
+ *
+ * The delay is a percentile (say the 95th) of recent successful request times, so only the
+ *  slowest few requests get hedged.  Until SAMPLES_NEEDED times have been seen, a fixed initial
+ *  delay is used.  To cap the extra load, each request earns budget hedges (0.05 means at most
+ *  about one extra request per twenty), and a hedge is only sent if one has been earned.
+ *
+ * Request times are kept in a histogram with four buckets per doubling, so the percentile is
+ *  found without sorting, rounded up by at most a quarter.
+ *
+ * If run() is called from within a KeybaseFuture, cancelling that cancels the attempts too.
+ *
+ * Install one with Search.setHedgePolicy(); the default is no hedging.
+ */
+public class HedgePolicy {
+
+    public static final double DEFAULT_PERCENTILE = 0.95;
+    public static final double DEFAULT_BUDGET = 0.05;
+    public static final int SAMPLES_NEEDED = 20;
+
+    private static final int SAMPLES_KEPT = 256;
+    // how many unspent hedges can pile up during a quiet spell
+    private static final double MAX_TOKENS = 10;
+
+    // below this many ms, one bucket per ms; above, four per doubling, up to 2^30 ms
+    private static final int EXACT_BUCKETS = 8;
+    private static final int BUCKETS = EXACT_BUCKETS + 4 * 28;
+
+    private final Executor mExecutor;
+    private final double mPercentile;
+    private final double mBudget;
+    private final long mInitialDelayMillis;
+
+    // the buckets of the last SAMPLES_KEPT request times, and how many fall in each
+    private final int[] mSamples = new int[SAMPLES_KEPT];
+    private final int[] mCounts = new int[BUCKETS];
+    private int mSampleCount = 0;
+    private int mNextSample = 0;
+    private double mTokens = 0;
+    private long mHedges = 0;
+
+    /**
+     * @param executor where the attempts run; needs at least two threads per concurrent request
+     */
+    public HedgePolicy(Executor executor) {
+        this(executor, DEFAULT_PERCENTILE, DEFAULT_BUDGET, 1000);
+    }
+
+    /**
+     * @param executor where the attempts run; needs at least two threads per concurrent request
+     * @param percentile of recent request times, between 0 and 1, after which to hedge
+     * @param budget hedges allowed per request
+     * @param initialDelayMillis hedge delay until there are enough samples
+     */
+    public HedgePolicy(Executor executor, double percentile, double budget, long initialDelayMillis) {
+        mExecutor = executor;
+        mPercentile = percentile;
+        mBudget = budget;
+        mInitialDelayMillis = initialDelayMillis;
+    }
+
+    /**
+     * Runs the work, hedging if it’s slow
+     *
+     * @return the result of whichever attempt finished first
+     */
+    public <V> V run(Callable<V> work) throws Exception {
+        long delay = startRequest();
+        Attempts<V> attempts = new Attempts<V>();
+        KeybaseFuture.whenCancelled(attempts);
+        try {
+            KeybaseFuture<V> first = attempts.start(timed(work), mExecutor);
+            try {
+                return first.get(delay, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                // slow; hedge if we can afford it
+            } catch (ExecutionException e) {
+                throw cause(e);
+            }
+            if (!spendToken()) {
+                return finish(first);
+            }
+
+            KeybaseFuture<V> second = attempts.start(timed(work), mExecutor);
+            KeybaseFuture<V> winner = attempts.mFinished.take();
+            try {
+                return winner.get();
+            } catch (ExecutionException e) {
+                // the other one may yet succeed
+                return finish((winner == first) ? second : first);
+            }
+        } finally {
+            // the loser, or both if we’re giving up
+            attempts.run();
+        }
+    }
+
+    /**
+     * @return the current hedge delay
+     */
+    public synchronized long getDelayMillis() {
+        if (mSampleCount < SAMPLES_NEEDED) {
+            return mInitialDelayMillis;
+        }
+        int rank = Math.max(1, (int) Math.ceil(mPercentile * mSampleCount));
+        int seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += mCounts[bucket];
+            if (seen >= rank) {
+                return upperBound(bucket);
+            }
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    /**
+     * @return how many hedges have been sent
+     */
+    public synchronized long getHedgeCount() {
+        return mHedges;
+    }
+
+    private synchronized long startRequest() {
+        mTokens = Math.min(MAX_TOKENS, mTokens + mBudget);
+        return getDelayMillis();
+    }
+
+    private synchronized boolean spendToken() {
+        if (mTokens < 1) {
+            return false;
+        }
+        mTokens -= 1;
+        mHedges++;
+        return true;
+    }
+
+    synchronized void record(long millis) {
+        if (mSampleCount == SAMPLES_KEPT) {
+            mCounts[mSamples[mNextSample]]--;
+        } else {
+            mSampleCount++;
+        }
+        int bucket = bucket(millis);
+        mSamples[mNextSample] = bucket;
+        mCounts[bucket]++;
+        mNextSample = (mNextSample + 1) % SAMPLES_KEPT;
+    }
+
+    static int bucket(long millis) {
+        if (millis < EXACT_BUCKETS) {
+            return (int) Math.max(0, millis);
+        }
+        // the top bit says which doubling, the two below it which quarter of it
+        int top = 63 - Long.numberOfLeadingZeros(millis);
+        int quarter = (int) (millis >> (top - 2)) & 3;
+        return Math.min(BUCKETS - 1, EXACT_BUCKETS + (top - 3) * 4 + quarter);
+    }
+
+    // the longest time that falls in the bucket
+    static long upperBound(int bucket) {
+        if (bucket < EXACT_BUCKETS) {
+            return bucket;
+        }
+        int top = (bucket - EXACT_BUCKETS) / 4 + 3;
+        int quarter = (bucket - EXACT_BUCKETS) % 4;
+        return ((5L + quarter) << (top - 2)) - 1;
+    }
+
+    private <V> Callable<V> timed(final Callable<V> work) {
+        return new Callable<V>() {
+            @Override
+            public V call() throws Exception {
+                long start = System.nanoTime();
+                V result = work.call();
+                record((System.nanoTime() - start) / 1000000);
+                return result;
+            }
+        };
+    }
+
+    // the attempts at one request, in the order they finish; run() cancels any still going
+    private static class Attempts<V> implements Runnable {
+        final BlockingQueue<KeybaseFuture<V>> mFinished = new LinkedBlockingQueue<KeybaseFuture<V>>();
+        private final List<KeybaseFuture<V>> mStarted = new ArrayList<KeybaseFuture<V>>(2);
+        private boolean mCancelled = false;
+
+        KeybaseFuture<V> start(Callable<V> work, Executor executor) {
+            final KeybaseFuture<V> attempt = new KeybaseFuture<V>(work);
+            attempt.addListener(new KeybaseFuture.Listener<V>() {
+                @Override
+                public void onSuccess(V result) {
+                    mFinished.add(attempt);
+                }
+
+                @Override
+                public void onFailure(Exception problem) {
+                    mFinished.add(attempt);
+                }
+            });
+            boolean cancelled;
+            synchronized (this) {
+                mStarted.add(attempt);
+                cancelled = mCancelled;
+            }
+            if (cancelled) {
+                attempt.cancel(true);
+            } else {
+                executor.execute(attempt);
+            }
+            return attempt;
+        }
+
+        @Override
+        public void run() {
+            List<KeybaseFuture<V>> started;
+            synchronized (this) {
+                mCancelled = true;
+                started = new ArrayList<KeybaseFuture<V>>(mStarted);
+            }
+            for (KeybaseFuture<V> attempt : started) {
+                attempt.cancel(true);
+            }
+        }
+    }
+
+    private static <V> V finish(KeybaseFuture<V> attempt) throws Exception {
+        try {
+            return attempt.get();
+        } catch (ExecutionException e) {
+            throw cause(e);
+        }
+    }
+
+    private static Exception cause(ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return (cause instanceof Exception) ? (Exception) cause : e;
+    }
+}
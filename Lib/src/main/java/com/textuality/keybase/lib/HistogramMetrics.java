@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2014 Tim Bray <tbray@textuality.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.textuality.keybase.lib;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * KeybaseMetrics that keeps a latency histogram for each scope/name/phase, and a counter for
+ *  each scope/name/event.  Recording is lock-free: a few atomic increments.
+ *
+ * Histogram buckets are powers of two in microseconds, so percentiles are accurate to within
+ *  a factor of two, which is plenty for telling a 50ms fetch from a 2s one.
+ */
+public class HistogramMetrics extends KeybaseMetrics {
+
+    private final ConcurrentMap<String, Histogram> mHistograms = new ConcurrentHashMap<String, Histogram>();
+    private final ConcurrentMap<String, AtomicLong> mCounts = new ConcurrentHashMap<String, AtomicLong>();
+
+    @Override
+    public void time(String scope, String name, String phase, long nanos) {
+        String key = scope + '/' + name + '/' + phase;
+        Histogram histogram = mHistograms.get(key);
+        if (histogram == null) {
+            Histogram fresh = new Histogram();
+            histogram = mHistograms.putIfAbsent(key, fresh);
+            if (histogram == null) {
+                histogram = fresh;
+            }
+        }
+        histogram.record(nanos);
+    }
+
+    @Override
+    public void count(String scope, String name, String event) {
+        String key = scope + '/' + name + '/' + event;
+        AtomicLong count = mCounts.get(key);
+        if (count == null) {
+            AtomicLong fresh = new AtomicLong();
+            count = mCounts.putIfAbsent(key, fresh);
+            if (count == null) {
+                count = fresh;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     * @return the histogram, or null if nothing’s been timed there
+     */
+    public Histogram getHistogram(String scope, String name, String phase) {
+        return mHistograms.get(scope + '/' + name + '/' + phase);
+    }
+
+    public long getCount(String scope, String name, String event) {
+        AtomicLong count = mCounts.get(scope + '/' + name + '/' + event);
+        return (count == null) ? 0 : count.get();
+    }
+
+    /**
+     * @return CACHE_HITs over CACHE_HITs plus CACHE_MISSes, or 0 if neither has happened
+     */
+    public double getHitRatio(String scope, String name) {
+        long hits = getCount(scope, name, CACHE_HIT);
+        long total = hits + getCount(scope, name, CACHE_MISS);
+        return (total == 0) ? 0 : (double) hits / total;
+    }
+
+    /**
+     * @return everything, one line per histogram or counter, sorted
+     */
+    @Override
+    public String toString() {
+        Map<String, String> lines = new TreeMap<String, String>();
+        for (Map.Entry<String, Histogram> entry : mHistograms.entrySet()) {
+            lines.put(entry.getKey(), entry.getValue().toString());
+        }
+        for (Map.Entry<String, AtomicLong> entry : mCounts.entrySet()) {
+            lines.put(entry.getKey(), Long.toString(entry.getValue().get()));
+        }
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> line : lines.entrySet()) {
+            sb.append(line.getKey()).append(' ').append(line.getValue()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    public static class Histogram {
+        // bucket i holds times under 2^i microseconds
+        private static final int BUCKETS = 40;
+
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mTotalNanos = new AtomicLong();
+        private final AtomicLong mMaxNanos = new AtomicLong();
+
+        void record(long nanos) {
+            long micros = Math.max(0, nanos / 1000);
+            int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+            mBuckets.incrementAndGet(bucket);
+            mCount.incrementAndGet();
+            mTotalNanos.addAndGet(nanos);
+            long max;
+            while (nanos > (max = mMaxNanos.get()) && !mMaxNanos.compareAndSet(max, nanos)) {
+                // lost a race, try again
+            }
+        }
+
+        public long getCount() {
+            return mCount.get();
+        }
+        public long getMeanNanos() {
+            long count = mCount.get();
+            return (count == 0) ? 0 : mTotalNanos.get() / count;
+        }
+        public long getMaxNanos() {
+            return mMaxNanos.get();
+        }
+
+        /**
+         * @param percentile between 0 and 1, e.g. 0.99
+         * @return an upper bound on that percentile, at most twice the true value
+         */
+        public long getPercentileNanos(double percentile) {
+            long count = 0;
+            long[] buckets = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = mBuckets.get(i);
+                count += buckets[i];
+            }
+            long wanted = (long) Math.ceil(percentile * count);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets[i];
+                if (seen >= wanted && seen > 0) {
+                    return Math.min(getMaxNanos(), (1L << i) * 1000);
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + getCount() + " mean=" + getMeanNanos() / 1000000 + "ms p50=" +
+                    getPercentileNanos(0.5) / 1000000 + "ms p99=" + getPercentileNanos(0.99) / 1000000 +
+                    "ms max=" + getMaxNanos() / 1000000 + "ms";
+        }
+    }
+}
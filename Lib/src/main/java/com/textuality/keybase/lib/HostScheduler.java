@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2014 Tim Bray <tbray@textuality.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.textuality.keybase.lib;
+
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Paces requests per host, so that bulk work stays under each host’s rate limit instead of
+ *  tripping it and getting 429s or a ban.
+ *
+ * A host with limits gets a token bucket (ratePerSecond tokens, holding at most burst) and a
+ *  cap on concurrent requests.  Callers queue for both first-come, first-served.  Hosts are
+ *  unlimited unless setLimits() or setDefaultLimits() says otherwise; the SUGGESTED_ values
+ *  are a polite setting for bulk work.  Whatever the limits, when a host says Retry-After,
+ *  backOff() stops all requests to it until then, or for MAX_BACK_OFF at most.
+ *
+ * Idle hosts are forgotten once more than MAX_HOSTS have been seen, and start afresh with a
+ *  full bucket if they come back.
+ *
+ * ThrottledTransport puts every request through a scheduler; Search’s default transport uses
+ *  getDefault().
+ */
+public class HostScheduler {
+
+    public static final double SUGGESTED_RATE = 10;
+    public static final int SUGGESTED_BURST = 20;
+    public static final int SUGGESTED_CONCURRENCY = 8;
+
+    public static final int MAX_HOSTS = 1024;
+    public static final long MAX_BACK_OFF = 10 * 60 * 1000;
+
+    private static final Limits UNLIMITED = new Limits(0, 1, 0);
+
+    private static final HostScheduler sDefault = new HostScheduler();
+
+    public static HostScheduler getDefault() {
+        return sDefault;
+    }
+
+    private volatile Limits mDefaultLimits = UNLIMITED;
+    private final ConcurrentMap<String, Limits> mLimits = new ConcurrentHashMap<String, Limits>();
+    private final ConcurrentMap<String, Host> mHosts = new ConcurrentHashMap<String, Host>();
+
+    /**
+     * Sets the limits for hosts that don’t have their own; affects hosts not yet seen.  The
+     *  arguments are as for setLimits().
+     */
+    public HostScheduler setDefaultLimits(double ratePerSecond, int burst, int maxConcurrent) {
+        mDefaultLimits = new Limits(ratePerSecond, burst, maxConcurrent);
+        return this;
+    }
+
+    /**
+     * Sets one host’s limits; do this before the first request to it, since a host that’s been
+     *  seen keeps the limits it started with
+     *
+     * @param ratePerSecond sustained requests per second; zero or less means unlimited
+     * @param burst how many requests can go back-to-back after a quiet spell
+     * @param maxConcurrent requests in flight at once; zero or less means unlimited
+     */
+    public HostScheduler setLimits(String host, double ratePerSecond, int burst, int maxConcurrent) {
+        host = host.toLowerCase(Locale.US);
+        mLimits.put(host, new Limits(ratePerSecond, burst, maxConcurrent));
+        return this;
+    }
+
+    /**
+     * Waits until a request to the host may go; pair with release()
+     */
+    public void acquire(String host) throws InterruptedException {
+        Host h = enter(host);
+        try {
+            h.mConcurrency.acquire();
+        } catch (InterruptedException e) {
+            h.exit();
+            throw e;
+        }
+        try {
+            h.awaitToken();
+        } catch (InterruptedException e) {
+            h.mConcurrency.release();
+            h.exit();
+            throw e;
+        }
+    }
+
+    /**
+     * The request to the host that acquire() let through is done
+     */
+    public void release(String host) {
+        // acquire() left it entered, so it can’t have been forgotten
+        Host h = mHosts.get(host.toLowerCase(Locale.US));
+        h.mConcurrency.release();
+        h.exit();
+    }
+
+    /**
+     * Holds off all requests to the host for a while, e.g. per a Retry-After header
+     *
+     * @param millis how long; more than MAX_BACK_OFF counts as MAX_BACK_OFF
+     */
+    public void backOff(String host, long millis) {
+        Host h = enter(host);
+        h.backOff(Math.max(0, Math.min(millis, MAX_BACK_OFF)));
+        h.exit();
+    }
+
+    /**
+     * @return how many hosts are being tracked
+     */
+    public int size() {
+        return mHosts.size();
+    }
+
+    // the host’s state, which won’t be forgotten until exit()
+    private Host enter(String name) {
+        name = name.toLowerCase(Locale.US);
+        while (true) {
+            Host host = mHosts.get(name);
+            if (host == null) {
+                Limits limits = mLimits.get(name);
+                Host fresh = new Host((limits == null) ? mDefaultLimits : limits);
+                host = mHosts.putIfAbsent(name, fresh);
+                if (host == null) {
+                    host = fresh;
+                    if (mHosts.size() > MAX_HOSTS) {
+                        forgetIdle();
+                    }
+                }
+            }
+            if (host.enter()) {
+                return host;
+            }
+            // forgotten between the get() and the enter(); it’s gone from the map, try again
+        }
+    }
+
+    private void forgetIdle() {
+        Iterator<Map.Entry<String, Host>> hosts = mHosts.entrySet().iterator();
+        while (hosts.hasNext()) {
+            Map.Entry<String, Host> entry = hosts.next();
+            if (entry.getValue().forget()) {
+                mHosts.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private static class Limits {
+        final double mRate;
+        final int mBurst;
+        final int mConcurrency;
+
+        Limits(double rate, int burst, int concurrency) {
+            mRate = rate;
+            mBurst = Math.max(1, burst);
+            mConcurrency = (concurrency <= 0) ? Integer.MAX_VALUE : concurrency;
+        }
+    }
+
+    private static class Host {
+        final Semaphore mConcurrency;
+        // callers take turns at the bucket, in arrival order
+        private final ReentrantLock mTurn = new ReentrantLock(true);
+        private final double mRate;
+        private final int mBurst;
+        private double mTokens;
+        private long mRefilledAt = System.nanoTime();
+        private long mBlockedUntil = mRefilledAt;
+        // threads between enter() and exit(); a host is only forgotten when there are none
+        private int mUsers = 0;
+        private boolean mForgotten = false;
+
+        Host(Limits limits) {
+            mConcurrency = new Semaphore(limits.mConcurrency, true);
+            mRate = limits.mRate;
+            mBurst = limits.mBurst;
+            mTokens = limits.mBurst;
+        }
+
+        synchronized boolean enter() {
+            if (mForgotten) {
+                return false;
+            }
+            mUsers++;
+            return true;
+        }
+
+        synchronized void exit() {
+            mUsers--;
+        }
+
+        // true if nobody’s using it and it has nothing worth remembering, which will then be so
+        synchronized boolean forget() {
+            long now = System.nanoTime();
+            boolean refilled = (mRate <= 0 || mTokens + (now - mRefilledAt) * mRate / 1e9 >= mBurst);
+            if (mUsers == 0 && refilled && mBlockedUntil - now <= 0) {
+                mForgotten = true;
+            }
+            return mForgotten;
+        }
+
+        void awaitToken() throws InterruptedException {
+            mTurn.lockInterruptibly();
+            try {
+                long wait;
+                while ((wait = tryTake()) > 0) {
+                    Thread.sleep(wait);
+                }
+            } finally {
+                mTurn.unlock();
+            }
+        }
+
+        // takes a token and returns 0, or returns how many ms to wait before trying again
+        private synchronized long tryTake() {
+            long now = System.nanoTime();
+            long blocked = (mBlockedUntil - now) / 1000000;
+            if (blocked > 0) {
+                return blocked;
+            }
+            if (mRate <= 0) {
+                return 0;
+            }
+            mTokens = Math.min(mBurst, mTokens + (now - mRefilledAt) * mRate / 1e9);
+            mRefilledAt = now;
+            if (mTokens >= 1) {
+                mTokens -= 1;
+                return 0;
+            }
+            return Math.max(1, (long) Math.ceil((1 - mTokens) * 1000 / mRate));
+        }
+
+        synchronized void backOff(long millis) {
+            long until = System.nanoTime() + millis * 1000000;
+            if (until - mBlockedUntil > 0) {
+                mBlockedUntil = until;
+            }
+        }
+    }
+}
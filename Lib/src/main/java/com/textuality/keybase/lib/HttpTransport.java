@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2014 Tim Bray <tbray@textuality.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.textuality.keybase.lib;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Default transport, on top of HttpURLConnection.
+ *
+ * Both the JVM and Android keep a per-host pool of idle keep-alive connections underneath
+ *  HttpURLConnection; a connection goes back in the pool once its body has been read or closed,
+ *  which is what Response.close() takes care of.  So successive requests to keybase.io (or to
+ *  the same proof host) skip the TCP & TLS handshakes.  The pool is the platform’s, not this
+ *  class’s: its size is the process-wide "http.maxConnections" system property (default 5 idle
+ *  connections per host), which the platform reads once, so an app that wants a different size
+ *  sets it at startup, before the first request goes out.  This class never sets it.
+ *
+ * Unless the caller says otherwise, responses are requested gzip- or deflate-compressed, and
+ *  decompressed as they’re read; the Response then looks as if the body had arrived plain,
+ *  with no Content-Encoding or Content-Length.  Whatever reads the body sees, and caps, the
+ *  decompressed bytes.
+ */
+public class HttpTransport implements KeybaseTransport {
+
+    public static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+    public static final int DEFAULT_READ_TIMEOUT = 25000;
+
+    private static final String ACCEPT_ENCODING = "Accept-Encoding";
+    private static final int INFLATE_BUFFER = 8192;
+
+    private final int mConnectTimeout;
+    private final int mReadTimeout;
+
+    public HttpTransport() {
+        this(DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT);
+    }
+
+    public HttpTransport(int connectTimeout, int readTimeout) {
+        mConnectTimeout = connectTimeout;
+        mReadTimeout = readTimeout;
+    }
+
+    @Override
+    public Response get(String url, Map<String, String> headers) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        if (headers != null) {
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                conn.addRequestProperty(header.getKey(), header.getValue());
+            }
+        }
+        if (conn.getRequestProperty(ACCEPT_ENCODING) == null) {
+            conn.setRequestProperty(ACCEPT_ENCODING, "gzip, deflate");
+        }
+        conn.setInstanceFollowRedirects(false);
+        conn.setConnectTimeout(mConnectTimeout);
+        conn.setReadTimeout(mReadTimeout);
+        conn.connect();
+        return new ConnectionResponse(conn);
+    }
+
+    static class ConnectionResponse implements Response {
+
+        private final HttpURLConnection mConn;
+        private InputStream mBody = null;
+
+        ConnectionResponse(HttpURLConnection conn) {
+            mConn = conn;
+        }
+
+        @Override
+        public int getStatus() throws IOException {
+            return mConn.getResponseCode();
+        }
+
+        @Override
+        public String getUrl() {
+            return mConn.getURL().toString();
+        }
+
+        @Override
+        public String getHeader(String name) {
+            if (isEncoded() &&
+                    (name.equalsIgnoreCase("Content-Encoding") || name.equalsIgnoreCase("Content-Length"))) {
+                return null;
+            }
+            return mConn.getHeaderField(name);
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            if (mBody == null) {
+                int status = getStatus();
+                // a 3xx body comes down the input stream; reading & closing it frees the connection
+                mBody = (status < 400) ? mConn.getInputStream() : mConn.getErrorStream();
+                if (mBody == null) {
+                    mBody = new ByteArrayInputStream(new byte[0]);
+                } else if (isEncoded()) {
+                    mBody = decode(mBody, encoding());
+                }
+            }
+            return mBody;
+        }
+
+        private String encoding() {
+            String encoding = mConn.getHeaderField("Content-Encoding");
+            return (encoding == null) ? "" : encoding.trim().toLowerCase(Locale.US);
+        }
+
+        private boolean isEncoded() {
+            String encoding = encoding();
+            return encoding.equals("gzip") || encoding.equals("x-gzip") || encoding.equals("deflate");
+        }
+
+        @Override
+        public void close() {
+            // closing, rather than disconnect()ing, hands the socket back to the keep-alive pool
+            try {
+                getBody().close();
+            } catch (IOException e) {
+                mConn.disconnect();
+            }
+        }
+
+        @Override
+        public void abort() {
+            mConn.disconnect();
+        }
+    }
+
+    static InputStream decode(InputStream raw, String encoding) throws IOException {
+        // an empty body, e.g. from a HEAD or 304, has no gzip header to read
+        PushbackInputStream in = new PushbackInputStream(raw, 2);
+        byte[] head = new byte[2];
+        int length = 0;
+        int count;
+        while (length < head.length && (count = in.read(head, length, head.length - length)) != -1) {
+            length += count;
+        }
+        if (length == 0) {
+            return in;
+        }
+        in.unread(head, 0, length);
+        if (!encoding.equals("deflate")) {
+            return new GZIPInputStream(in, INFLATE_BUFFER);
+        }
+
+        // "deflate" is meant to be zlib-wrapped, but some servers send it raw
+        boolean zlib = (length == 2 && (head[0] & 0x0f) == 8 &&
+                (((head[0] & 0xff) << 8) | (head[1] & 0xff)) % 31 == 0);
+        final Inflater inflater = new Inflater(!zlib);
+        return new InflaterInputStream(in, inflater, INFLATE_BUFFER) {
+            @Override
+            public void close() throws IOException {
+                // an Inflater we supplied isn’t ended for us
+                super.close();
+                inflater.end();
+            }
+        };
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2014 Tim Bray <tbray@textuality.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.textuality.keybase.lib;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * In-process prefix index over every identity the library has seen, from searches and from
+ *  user lookups, for instant suggestions that don’t need keybase.io.
+ *
+ * Identities are indexed by username, the words of their full name, and their proof handles.
+ *  The index holds at most a fixed number of identities, dropping the least recently seen.
+ *
+ * Adding an identity just queues it; the work of indexing it is done by the next search(), or
+ *  once MAX_PENDING are queued, so that lookups and searches that feed the index pay next to
+ *  nothing for it.
+ *
+ * The library feeds getDefault(), if there is one.  There isn’t unless the app installs one,
+ *  for example setDefault(new IdentityIndex(DEFAULT_CAPACITY)).
+ */
+public class IdentityIndex {
+
+    public static final int DEFAULT_CAPACITY = 10000;
+    public static final int MAX_PENDING = 64;
+
+    private static volatile IdentityIndex sDefault = null;
+
+    public static IdentityIndex getDefault() {
+        return sDefault;
+    }
+    public static void setDefault(IdentityIndex index) {
+        sDefault = index;
+    }
+
+    private final int mCapacity;
+    // lowercase term -> usernames
+    private final TreeMap<String, Set<String>> mTerms = new TreeMap<String, Set<String>>();
+    // username -> what we know, least recently seen first
+    private final LinkedHashMap<String, Identity> mIdentities = new LinkedHashMap<String, Identity>();
+    private long mSeen = 0;
+    // added but not yet indexed, oldest first
+    private final List<Source> mPending = new ArrayList<Source>();
+
+    /**
+     * An identity to be indexed, described only when the index gets round to it
+     */
+    public interface Source {
+        /**
+         * @param handles to add more terms to find the identity by, e.g. Proof.getHandle() values
+         * @return what to suggest for it, or null if there’s nothing to index
+         */
+        Match describe(Collection<String> handles);
+    }
+
+    private static final Comparator<Identity> NEWEST_FIRST = new Comparator<Identity>() {
+        @Override
+        public int compare(Identity a, Identity b) {
+            return (a.mSeen < b.mSeen) ? 1 : ((a.mSeen == b.mSeen) ? 0 : -1);
+        }
+    };
+
+    public IdentityIndex(int capacity) {
+        mCapacity = capacity;
+    }
+
+    /**
+     * Adds or refreshes an identity
+     *
+     * @param match what to suggest for it
+     * @param handles more terms to find it by, e.g. Proof.getHandle() values; may be null
+     */
+    public void add(final Match match, final Collection<String> handles) {
+        add(new Source() {
+            @Override
+            public Match describe(Collection<String> more) {
+                if (handles != null) {
+                    more.addAll(handles);
+                }
+                return match;
+            }
+        });
+    }
+
+    /**
+     * Adds or refreshes an identity, to be described when it’s indexed
+     */
+    public synchronized void add(Source source) {
+        mPending.add(source);
+        if (mPending.size() >= MAX_PENDING) {
+            indexPending();
+        }
+    }
+
+    private void indexPending() {
+        List<String> handles = new ArrayList<String>();
+        for (Source source : mPending) {
+            handles.clear();
+            Match match = source.describe(handles);
+            if (match != null) {
+                index(match, handles);
+            }
+        }
+        mPending.clear();
+    }
+
+    private void index(Match match, Collection<String> handles) {
+        String username;
+        try {
+            username = match.getUsername();
+        } catch (KeybaseException e) {
+            return;
+        }
+        remove(username);
+
+        Set<String> terms = new HashSet<String>();
+        addTerm(terms, username);
+        String fullName = null;
+        try {
+            fullName = match.getFullName();
+        } catch (KeybaseException e) {
+            // none
+        }
+        if (fullName != null) {
+            for (String word : fullName.split("\\s+")) {
+                addTerm(terms, word);
+            }
+        }
+        for (String label : match.getProofLabels()) {
+            addTerm(terms, label);
+            addTerm(terms, label.substring(label.lastIndexOf('/') + 1));
+        }
+        for (String handle : handles) {
+            addTerm(terms, handle.startsWith("@") ? handle.substring(1) : handle);
+        }
+
+        for (String term : terms) {
+            Set<String> usernames = mTerms.get(term);
+            if (usernames == null) {
+                usernames = new LinkedHashSet<String>();
+                mTerms.put(term, usernames);
+            }
+            usernames.add(username);
+        }
+        mIdentities.put(username, new Identity(match, terms, ++mSeen));
+
+        if (mIdentities.size() > mCapacity) {
+            remove(mIdentities.keySet().iterator().next());
+        }
+    }
+
+    public void addAll(Collection<Match> matches) {
+        for (Match match : matches) {
+            add(match, null);
+        }
+    }
+
+    /**
+     * @param prefix what’s been typed so far
+     * @param limit most results wanted
+     * @return identities with a term starting with the prefix, most recently seen first
+     */
+    public synchronized List<Match> search(String prefix, int limit) {
+        indexPending();
+        String from = prefix.trim().toLowerCase(Locale.US);
+        List<Match> found = new ArrayList<Match>();
+        if (from.length() == 0) {
+            return found;
+        }
+        SortedMap<String, Set<String>> range = mTerms.subMap(from, from + Character.MAX_VALUE);
+        Set<String> usernames = new HashSet<String>();
+        for (Set<String> forTerm : range.values()) {
+            usernames.addAll(forTerm);
+        }
+        List<Identity> hits = new ArrayList<Identity>(usernames.size());
+        for (String username : usernames) {
+            hits.add(mIdentities.get(username));
+        }
+        Collections.sort(hits, NEWEST_FIRST);
+        for (int i = 0; i < hits.size() && i < limit; i++) {
+            found.add(hits.get(i).mMatch);
+        }
+        return found;
+    }
+
+    public synchronized int size() {
+        indexPending();
+        return mIdentities.size();
+    }
+
+    private void remove(String username) {
+        Identity identity = mIdentities.remove(username);
+        if (identity != null) {
+            for (String term : identity.mTerms) {
+                Set<String> usernames = mTerms.get(term);
+                if (usernames != null) {
+                    usernames.remove(username);
+                    if (usernames.isEmpty()) {
+                        mTerms.remove(term);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void addTerm(Set<String> terms, String term) {
+        term = term.trim().toLowerCase(Locale.US);
+        if (term.length() > 0) {
+            terms.add(term);
+        }
+    }
+
+    private static class Identity {
+        final Match mMatch;
+        final Set<String> mTerms;
+        final long mSeen;
+
+        Identity(Match match, Set<String> terms, long seen) {
+            mMatch = match;
+            mTerms = terms;
+            mSeen = seen;
+        }
+    }
+}
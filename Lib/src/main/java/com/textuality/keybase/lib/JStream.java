@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) 2014 Tim Bray <tbray@textuality.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.textuality.keybase.lib;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming counterpart to JWalk
+ *
+ * Pulls just the parts you ask for out of a JSON text as it’s read, skipping everything else
+ *  without building it.  The result is a sparse JSONObject with the same shape as the original
+ *  but containing only the requested paths, so the usual JWalk calls work on it.  For example,
+ *  to get just the key out of a user lookup:
+ *
+ *  JSONObject json = JStream.extract(reader, new String[] { "them", "public_keys", "primary", "bundle" });
+ *  String key = JWalk.getString(json, "them", "public_keys", "primary", "bundle");
+ *
+ * Path steps select object members by name, or array elements by decimal index, e.g.
+ *  { "sigs", "0", "sig" }.  Whatever a path ends at is materialized in full.
+ */
+public class JStream {
+
+    private static final Object MISSING = new Object();
+
+    private final Reader mIn;
+    private final char[] mBuf = new char[8192];
+    private int mPos = 0;
+    private int mLimit = 0;
+
+    /**
+     * @param in the JSON text, which must be an object
+     * @param paths each a list of member selectors
+     * @return a sparse copy of the object containing only what the paths select
+     */
+    public static JSONObject extract(Reader in, String[]... paths) throws IOException, JSONException {
+        JStream stream = new JStream(in);
+        List<String[]> active = new ArrayList<String[]>();
+        for (String[] path : paths) {
+            active.add(path);
+        }
+        if (stream.peek() != '{') {
+            throw new JSONException("JStream: top level isn’t an object");
+        }
+        Object result = stream.select(active, 0);
+        return (result == MISSING) ? new JSONObject() : (JSONObject) result;
+    }
+
+    private JStream(Reader in) {
+        mIn = in;
+    }
+
+    // returns MISSING if no path selects anything in this value
+    private Object select(List<String[]> active, int depth) throws IOException, JSONException {
+        for (String[] path : active) {
+            if (path.length == depth) {
+                return readValue();
+            }
+        }
+        char c = peek();
+        if (c == '{') {
+            next();
+            JSONObject sparse = null;
+            if (peek() == '}') {
+                next();
+                return MISSING;
+            }
+            while (true) {
+                String name = readString();
+                expect(':');
+                List<String[]> matching = matching(active, depth, name);
+                if (matching.isEmpty()) {
+                    skipValue();
+                } else {
+                    Object value = select(matching, depth + 1);
+                    if (value != MISSING) {
+                        if (sparse == null) {
+                            sparse = new JSONObject();
+                        }
+                        sparse.put(name, value);
+                    }
+                }
+                c = nextNonSpace();
+                if (c == '}') {
+                    return (sparse == null) ? MISSING : sparse;
+                } else if (c != ',') {
+                    throw syntax("expected , or }");
+                }
+            }
+        } else if (c == '[') {
+            next();
+            JSONArray sparse = null;
+            if (peek() == ']') {
+                next();
+                return MISSING;
+            }
+            for (int index = 0; ; index++) {
+                List<String[]> matching = matching(active, depth, Integer.toString(index));
+                if (matching.isEmpty()) {
+                    skipValue();
+                } else {
+                    Object value = select(matching, depth + 1);
+                    if (value != MISSING) {
+                        if (sparse == null) {
+                            sparse = new JSONArray();
+                        }
+                        sparse.put(index, value);
+                    }
+                }
+                c = nextNonSpace();
+                if (c == ']') {
+                    return (sparse == null) ? MISSING : sparse;
+                } else if (c != ',') {
+                    throw syntax("expected , or ]");
+                }
+            }
+        } else {
+            // a scalar, but the paths want to go deeper
+            skipValue();
+            return MISSING;
+        }
+    }
+
+    private static List<String[]> matching(List<String[]> active, int depth, String step) {
+        List<String[]> matching = new ArrayList<String[]>(active.size());
+        for (String[] path : active) {
+            if (path[depth].equals(step)) {
+                matching.add(path);
+            }
+        }
+        return matching;
+    }
+
+    private Object readValue() throws IOException, JSONException {
+        char c = peek();
+        switch (c) {
+            case '{': {
+                next();
+                JSONObject object = new JSONObject();
+                if (peek() == '}') {
+                    next();
+                    return object;
+                }
+                while (true) {
+                    String name = readString();
+                    expect(':');
+                    object.put(name, readValue());
+                    c = nextNonSpace();
+                    if (c == '}') {
+                        return object;
+                    } else if (c != ',') {
+                        throw syntax("expected , or }");
+                    }
+                }
+            }
+            case '[': {
+                next();
+                JSONArray array = new JSONArray();
+                if (peek() == ']') {
+                    next();
+                    return array;
+                }
+                while (true) {
+                    array.put(readValue());
+                    c = nextNonSpace();
+                    if (c == ']') {
+                        return array;
+                    } else if (c != ',') {
+                        throw syntax("expected , or ]");
+                    }
+                }
+            }
+            case '"':
+                return readString();
+            default:
+                return readLiteral();
+        }
+    }
+
+    private void skipValue() throws IOException, JSONException {
+        char c = peek();
+        if (c == '"') {
+            skipString();
+        } else if (c == '{' || c == '[') {
+            int nesting = 0;
+            do {
+                c = next();
+                if (c == '"') {
+                    mPos--;
+                    skipString();
+                } else if (c == '{' || c == '[') {
+                    nesting++;
+                } else if (c == '}' || c == ']') {
+                    nesting--;
+                }
+            } while (nesting > 0);
+        } else {
+            readLiteral();
+        }
+    }
+
+    private Object readLiteral() throws IOException, JSONException {
+        StringBuilder sb = new StringBuilder();
+        peek();
+        while (true) {
+            if (mPos == mLimit && !fill()) {
+                break;
+            }
+            char c = mBuf[mPos];
+            if (c == ',' || c == '}' || c == ']' || Character.isWhitespace(c)) {
+                break;
+            }
+            sb.append(c);
+            mPos++;
+        }
+        String text = sb.toString();
+        if (text.equals("true")) {
+            return Boolean.TRUE;
+        } else if (text.equals("false")) {
+            return Boolean.FALSE;
+        } else if (text.equals("null")) {
+            return JSONObject.NULL;
+        }
+        try {
+            if (text.indexOf('.') != -1 || text.indexOf('e') != -1 || text.indexOf('E') != -1) {
+                return Double.valueOf(text);
+            }
+            if (!isInteger(text)) {
+                throw syntax("bad literal " + text);
+            }
+            try {
+                long value = Long.parseLong(text);
+                if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+                    return (int) value;
+                }
+                return value;
+            } catch (NumberFormatException e) {
+                // too big for a long; a Double, as JSONObject’s own parser makes it
+                return Double.valueOf(text);
+            }
+        } catch (NumberFormatException e) {
+            throw syntax("bad literal " + text);
+        }
+    }
+
+    private static boolean isInteger(String text) {
+        int start = (text.startsWith("-")) ? 1 : 0;
+        if (start == text.length()) {
+            return false;
+        }
+        for (int i = start; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String readString() throws IOException, JSONException {
+        if (nextNonSpace() != '"') {
+            throw syntax("expected string");
+        }
+        StringBuilder sb = new StringBuilder();
+        while (true) {
+            char c = next();
+            if (c == '"') {
+                return sb.toString();
+            } else if (c == '\\') {
+                c = next();
+                switch (c) {
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'n': sb.append('\n'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'u': {
+                        char[] hex = { next(), next(), next(), next() };
+                        try {
+                            sb.append((char) Integer.parseInt(new String(hex), 16));
+                        } catch (NumberFormatException e) {
+                            throw syntax("bad \\u escape");
+                        }
+                        break;
+                    }
+                    default: sb.append(c);
+                }
+            } else {
+                sb.append(c);
+            }
+        }
+    }
+
+    private void skipString() throws IOException, JSONException {
+        next(); // the opening quote
+        while (true) {
+            char c = next();
+            if (c == '"') {
+                return;
+            } else if (c == '\\') {
+                next();
+            }
+        }
+    }
+
+    private void expect(char expected) throws IOException, JSONException {
+        if (nextNonSpace() != expected) {
+            throw syntax("expected " + expected);
+        }
+    }
+
+    // the next non-space char, not consumed
+    private char peek() throws IOException, JSONException {
+        char c = nextNonSpace();
+        mPos--;
+        return c;
+    }
+
+    private char nextNonSpace() throws IOException, JSONException {
+        char c;
+        do {
+            c = next();
+        } while (c == ' ' || c == '\n' || c == '\r' || c == '\t');
+        return c;
+    }
+
+    private char next() throws IOException, JSONException {
+        if (mPos == mLimit && !fill()) {
+            throw syntax("unexpected end of input");
+        }
+        return mBuf[mPos++];
+    }
+
+    // keeps the last char in place so that peek() can always step back one
+    private boolean fill() throws IOException {
+        if (mLimit > 0) {
+            mBuf[0] = mBuf[mLimit - 1];
+            mPos = mLimit = 1;
+        }
+        int count = mIn.read(mBuf, mLimit, mBuf.length - mLimit);
+        if (count <= 0) {
+            return false;
+        }
+        mLimit += count;
+        return true;
+    }
+
+    private JSONException syntax(String message) {
+        return new JSONException("JStream: " + message);
+    }
+}
@@ -31,6 +31,13 @@ import org.json.JSONObject;
  *
  * If you want to retrieve the ascii-armored key, you'd say
  * String key = JWalk.getString(match,"them", "public_keys", "primary", "bundle");
+ *
+ * If you’re going to use a path over and over, compile it once:
+ * JWalk.Path keyPath = JWalk.compile("them", "public_keys", "primary", "bundle");
+ * String key = keyPath.getString(match);
+ *
+ * The opt* methods return null (or a fallback) when something along the path is missing,
+ *  rather than throwing, which is much cheaper when absence is normal.
  */
 public class JWalk {
 
@@ -112,8 +119,162 @@ public class JWalk {
         return json.getJSONObject(path[path.length - 1]);
     }
 
+    /**
+     * Returns a String member value from the JSON sub-object addressed by the path, or null
+     *
+     * @param json The object
+     * @param path list of string object member selectors
+     * @return the String addressed by the path, or null if any step in the path doesn’t work
+     */
+    public static String optString(JSONObject json, String... path) {
+        return stringValue(opt(json, path));
+    }
+
+    /**
+     * Returns an int member value from the JSON sub-object addressed by the path, or a fallback
+     *
+     * @param json The object
+     * @param fallback what to return if any step in the path doesn’t work
+     * @param path list of string object member selectors
+     * @return the int addressed by the path, or the fallback
+     */
+    public static int optInt(JSONObject json, int fallback, String... path) {
+        Number number = numberValue(opt(json, path));
+        return (number == null) ? fallback : number.intValue();
+    }
+
+    /**
+     * Returns a JSONArray member value from the JSON sub-object addressed by the path, or null
+     *
+     * @param json The object
+     * @param path list of string object member selectors
+     * @return the JSONArray addressed by the path, or null if any step in the path doesn’t work
+     */
+    public static JSONArray optArray(JSONObject json, String... path) {
+        Object value = opt(json, path);
+        return (value instanceof JSONArray) ? (JSONArray) value : null;
+    }
+
+    /**
+     * Prepares a path for repeated use
+     *
+     * @param path list of string object member selectors
+     * @return the compiled path
+     * @throws IllegalArgumentException if the path is empty
+     */
+    public static Path compile(String... path) {
+        return new Path(path);
+    }
+
+    /**
+     * A compiled path, for evaluating against many JSON objects.  Immutable, so share freely.
+     */
+    public static class Path {
+        private final String[] mPath;
+
+        private Path(String... path) {
+            mPath = checked(path).clone();
+        }
+
+        public String getString(JSONObject json) throws JSONException {
+            return required(optString(json));
+        }
+        public int getInt(JSONObject json) throws JSONException {
+            return required(optNumber(json)).intValue();
+        }
+        public long getLong(JSONObject json) throws JSONException {
+            return required(optNumber(json)).longValue();
+        }
+        public JSONArray getArray(JSONObject json) throws JSONException {
+            return required(optArray(json));
+        }
+        public JSONObject getObject(JSONObject json) throws JSONException {
+            return required(optObject(json));
+        }
+
+        public String optString(JSONObject json) {
+            return stringValue(JWalk.opt(json, mPath));
+        }
+        public int optInt(JSONObject json, int fallback) {
+            Number number = optNumber(json);
+            return (number == null) ? fallback : number.intValue();
+        }
+        public long optLong(JSONObject json, long fallback) {
+            Number number = optNumber(json);
+            return (number == null) ? fallback : number.longValue();
+        }
+        public JSONArray optArray(JSONObject json) {
+            Object value = JWalk.opt(json, mPath);
+            return (value instanceof JSONArray) ? (JSONArray) value : null;
+        }
+        public JSONObject optObject(JSONObject json) {
+            Object value = JWalk.opt(json, mPath);
+            return (value instanceof JSONObject) ? (JSONObject) value : null;
+        }
+
+        private Number optNumber(JSONObject json) {
+            return numberValue(JWalk.opt(json, mPath));
+        }
+
+        private <T> T required(T value) throws JSONException {
+            if (value == null) {
+                throw new JSONException("JWalk: nothing usable at " + this);
+            }
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(mPath[0]);
+            for (int i = 1; i < mPath.length; i++) {
+                sb.append('.').append(mPath[i]);
+            }
+            return sb.toString();
+        }
+    }
+
+    private static String[] checked(String[] path) {
+        if (path == null || path.length == 0) {
+            throw new IllegalArgumentException("JWalk: empty path");
+        }
+        return path;
+    }
+
+    // the value at the end of the path, or null if any step doesn’t work
+    private static Object opt(JSONObject json, String[] path) {
+        int last = checked(path).length - 1;
+        for (int i = 0; i < last; i++) {
+            json = json.optJSONObject(path[i]);
+            if (json == null) {
+                return null;
+            }
+        }
+        return json.opt(path[last]);
+    }
+
+    private static String stringValue(Object value) {
+        if (value == null || value == JSONObject.NULL || value instanceof JSONObject ||
+                value instanceof JSONArray) {
+            return null;
+        }
+        return (value instanceof String) ? (String) value : value.toString();
+    }
+
+    private static Number numberValue(Object value) {
+        if (value instanceof Number) {
+            return (Number) value;
+        } else if (value instanceof String) {
+            try {
+                return Double.valueOf((String) value);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
     private static JSONObject walk(JSONObject json, String... path) throws JSONException {
-        int len = path.length - 1;
+        int len = checked(path).length - 1;
         int pathIndex = 0;
         try {
             while (pathIndex < len) {
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2014 Tim Bray <tbray@textuality.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.textuality.keybase.lib;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded in-memory cache of Keybase API responses, keyed by path+query.  Install one with
+ *  Search.setCache(), and everything that goes through Search.getFromKeybase() - user lookups,
+ *  searches, sig fetches - is answered from memory while the entry is fresh.
+ *
+ * Each endpoint (the path part, e.g. "_/api/1.0/user/lookup.json?username=") can have its own
+ *  time-to-live; a TTL of zero means that endpoint isn’t cached.  When the cache is full the
+ *  least-recently-used entry goes.
+ *
+ * The cache keeps its own copy of each response and hands every caller a fresh copy, so
+ *  callers are free to modify what they get without affecting each other.
+ */
+public class KeybaseCache {
+
+    private final long mDefaultTtl;
+    private final Map<String, Long> mTtls = new HashMap<String, Long>();
+    private final LinkedHashMap<String, Cached> mEntries;
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    /**
+     * @param maxEntries how many responses to hold
+     * @param defaultTtl milliseconds an entry stays fresh, for endpoints without their own TTL
+     */
+    public KeybaseCache(final int maxEntries, long defaultTtl) {
+        mDefaultTtl = defaultTtl;
+        mEntries = new LinkedHashMap<String, Cached>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Sets the TTL for one endpoint
+     *
+     * @param path the path as passed to Search.getFromKeybase()
+     * @param ttl milliseconds; zero turns off caching for this endpoint
+     * @return this cache
+     */
+    public synchronized KeybaseCache setTtl(String path, long ttl) {
+        mTtls.put(path, ttl);
+        return this;
+    }
+
+    public synchronized JSONObject get(String path, String query) {
+        String key = path + query;
+        Cached entry = mEntries.get(key);
+        if (entry != null && entry.mExpires < System.currentTimeMillis()) {
+            mEntries.remove(key);
+            entry = null;
+        }
+        if (entry == null) {
+            mMisses.incrementAndGet();
+            return null;
+        }
+        mHits.incrementAndGet();
+        return copy(entry.mJson);
+    }
+
+    public void put(String path, String query, JSONObject json) {
+        long ttl;
+        synchronized (this) {
+            ttl = ttlFor(path);
+        }
+        if (ttl > 0) {
+            // copied outside the lock; the caller still owns, and may change, the original
+            Cached entry = new Cached(copy(json), System.currentTimeMillis() + ttl);
+            synchronized (this) {
+                mEntries.put(path + query, entry);
+            }
+        }
+    }
+
+    public synchronized void invalidate(String path, String query) {
+        mEntries.remove(path + query);
+    }
+
+    public synchronized void invalidateAll() {
+        mEntries.clear();
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    public long getMissCount() {
+        return mMisses.get();
+    }
+
+    // a deep copy; strings, numbers, booleans and NULL are immutable and so shared
+    static JSONObject copy(JSONObject json) {
+        JSONObject copy = new JSONObject();
+        try {
+            Iterator<?> keys = json.keys();
+            while (keys.hasNext()) {
+                String key = (String) keys.next();
+                copy.put(key, copyValue(json.get(key)));
+            }
+        } catch (JSONException e) {
+            // can’t happen: the keys and values came from a valid JSONObject
+            throw new IllegalStateException(e);
+        }
+        return copy;
+    }
+
+    private static JSONArray copy(JSONArray json) throws JSONException {
+        JSONArray copy = new JSONArray();
+        for (int i = 0; i < json.length(); i++) {
+            copy.put(copyValue(json.get(i)));
+        }
+        return copy;
+    }
+
+    private static Object copyValue(Object value) throws JSONException {
+        if (value instanceof JSONObject) {
+            return copy((JSONObject) value);
+        } else if (value instanceof JSONArray) {
+            return copy((JSONArray) value);
+        }
+        return value;
+    }
+
+    private long ttlFor(String path) {
+        Long ttl = mTtls.get(path);
+        return (ttl == null) ? mDefaultTtl : ttl;
+    }
+
+    private static class Cached {
+        final JSONObject mJson;
+        final long mExpires;
+
+        Cached(JSONObject json, long expires) {
+            mJson = json;
+            mExpires = expires;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2014 Tim Bray <tbray@textuality.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.textuality.keybase.lib;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * The result of an asynchronous Keybase operation such as Search.searchAsync() or
+ *  User.findByUsernameAsync().  The work runs on whatever Executor the caller supplies.
+ *
+ * Cancelling the future completes it at once and aborts any HTTP response the operation has
+ *  in flight.  With the default transport that means HttpURLConnection.disconnect(), which on
+ *  Android closes the socket immediately; the JVM’s implementation may leave a read that’s
+ *  already blocked to finish or time out, but the connection is never re-used.
+ *
+ * Rather than calling get(), you can addListener() to hear about completion.
+ */
+public class KeybaseFuture<V> extends FutureTask<V> {
+
+    public interface Listener<V> {
+        void onSuccess(V result);
+
+        /**
+         * @param problem usually a KeybaseException; a CancellationException if cancelled
+         */
+        void onFailure(Exception problem);
+    }
+
+    private static final ThreadLocal<KeybaseFuture<?>> sCurrent = new ThreadLocal<KeybaseFuture<?>>();
+
+    private final List<KeybaseTransport.Response> mInFlight = new ArrayList<KeybaseTransport.Response>();
+    private final List<Listener<V>> mListeners = new ArrayList<Listener<V>>();
+    private boolean mNotified = false;
+
+    /**
+     * Runs the work on the executor
+     */
+    public static <V> KeybaseFuture<V> submit(Callable<V> work, Executor executor) {
+        KeybaseFuture<V> future = new KeybaseFuture<V>(work);
+        executor.execute(future);
+        return future;
+    }
+
+    public KeybaseFuture(Callable<V> work) {
+        super(work);
+    }
+
+    /**
+     * @param listener called, on the thread that completes the work, when it’s done; right away
+     *  if it already is
+     * @return this future
+     */
+    public KeybaseFuture<V> addListener(Listener<V> listener) {
+        synchronized (mListeners) {
+            if (!mNotified) {
+                mListeners.add(listener);
+                return this;
+            }
+        }
+        report(listener);
+        return this;
+    }
+
+    @Override
+    public void run() {
+        KeybaseFuture<?> outer = sCurrent.get();
+        sCurrent.set(this);
+        try {
+            super.run();
+        } finally {
+            sCurrent.set(outer);
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean cancelled = super.cancel(mayInterruptIfRunning);
+        if (cancelled) {
+            List<KeybaseTransport.Response> inFlight;
+            synchronized (mInFlight) {
+                inFlight = new ArrayList<KeybaseTransport.Response>(mInFlight);
+            }
+            for (KeybaseTransport.Response response : inFlight) {
+                response.abort();
+            }
+        }
+        return cancelled;
+    }
+
+    @Override
+    protected void done() {
+        List<Listener<V>> listeners;
+        synchronized (mListeners) {
+            mNotified = true;
+            listeners = new ArrayList<Listener<V>>(mListeners);
+            mListeners.clear();
+        }
+        for (Listener<V> listener : listeners) {
+            report(listener);
+        }
+    }
+
+    private void report(Listener<V> listener) {
+        V result;
+        try {
+            result = get();
+        } catch (CancellationException e) {
+            listener.onFailure(e);
+            return;
+        } catch (InterruptedException e) {
+            listener.onFailure(e);
+            return;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            listener.onFailure((cause instanceof Exception) ? (Exception) cause : e);
+            return;
+        }
+        listener.onSuccess(result);
+    }
+
+    /**
+     * Records that the operation running on this thread, if any, has a response open, so that
+     *  cancel() can abort it.  Pair with untrack() when the response is closed.
+     */
+    public static void track(KeybaseTransport.Response response) {
+        KeybaseFuture<?> current = sCurrent.get();
+        if (current != null) {
+            synchronized (current.mInFlight) {
+                current.mInFlight.add(response);
+            }
+            if (current.isCancelled()) {
+                response.abort();
+            }
+        }
+    }
+
+    // runs the action if the operation running on this thread, if any, is cancelled
+    static void whenCancelled(Runnable action) {
+        KeybaseFuture<?> current = sCurrent.get();
+        if (current != null) {
+            current.onCancel(action);
+        }
+    }
+
+    private void onCancel(final Runnable action) {
+        addListener(new Listener<V>() {
+            @Override
+            public void onSuccess(V result) {
+            }
+
+            @Override
+            public void onFailure(Exception problem) {
+                if (problem instanceof CancellationException) {
+                    action.run();
+                }
+            }
+        });
+    }
+
+    public static void untrack(KeybaseTransport.Response response) {
+        KeybaseFuture<?> current = sCurrent.get();
+        if (current != null) {
+            synchronized (current.mInFlight) {
+                current.mInFlight.remove(response);
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2014 Tim Bray <tbray@textuality.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.textuality.keybase.lib;
+
+/**
+ * Where the library reports how long things take and how often things happen.  Subclass it,
+ *  overriding what you care about, and install() the result; or install a HistogramMetrics.
+ *  Until something is installed, reports go to NONE, which does nothing.
+ *
+ * Each report names a scope, and a name within it:
+ *  API    the endpoint path as passed to Search.getFromKeybase()
+ *  FETCH  the host of a proof document
+ *  HOST   any host, as seen by ThrottledTransport
+ *  PROOF  the proof type, as Proof.getPrettyName()
+ *  STORE  "sig" for the SigStore, "user" for User’s DiskStore
+ *
+ * Phases of an HTTP request are CONNECT (DNS, TCP and TLS together, since HttpURLConnection
+ *  doesn’t separate them; near zero for a re-used connection), TTFB (request sent to response
+ *  headers back), DOWNLOAD and PARSE; a streamed, sparse API response is parsed as it
+ *  downloads, and is reported as DOWNLOAD.  With the default ThrottledTransport, CONNECT also
+ *  includes any wait for the host’s turn, which is reported separately as QUEUE under HOST.
+ *  Prover stages are reported under the PROOF scope.
+ *
+ * Reports come from whatever thread does the work, so implementations must be thread-safe,
+ *  and should be quick.
+ */
+public abstract class KeybaseMetrics {
+
+    // scopes
+    public static final String API = "api";
+    public static final String FETCH = "fetch";
+    public static final String HOST = "host";
+    public static final String PROOF = "proof";
+    public static final String STORE = "store";
+
+    // phases
+    public static final String QUEUE = "queue";
+    public static final String CONNECT = "connect";
+    public static final String TTFB = "ttfb";
+    public static final String DOWNLOAD = "download";
+    public static final String PARSE = "parse";
+    public static final String TOTAL = "total";
+
+    // prover stages
+    public static final String STAGE_FETCH = "fetch";
+    public static final String STAGE_SIGNATURE = "signature";
+    public static final String STAGE_DNS = "dns";
+    public static final String STAGE_RAW_MESSAGE = "raw-message";
+    public static final String STAGE_VALIDATE = "validate";
+
+    // events
+    public static final String CACHE_HIT = "cache-hit";
+    public static final String CACHE_MISS = "cache-miss";
+    public static final String REDIRECT = "redirect";
+    public static final String THROTTLED = "throttled";
+    public static final String VERIFIED = "verified";
+    public static final String NOT_VERIFIED = "not-verified";
+
+    // error classes, also events
+    public static final String ERROR_NETWORK = "error-network";
+    public static final String ERROR_STATUS = "error-status";
+    public static final String ERROR_PARSE = "error-parse";
+    public static final String ERROR_QUERY = "error-query";
+    public static final String ERROR_TOO_LARGE = "error-too-large";
+    public static final String ERROR_REDIRECTS = "error-redirects";
+
+    public static final KeybaseMetrics NONE = new KeybaseMetrics() {
+        @Override
+        public boolean isEnabled() {
+            return false;
+        }
+    };
+
+    private static volatile KeybaseMetrics sInstalled = NONE;
+
+    /**
+     * @param metrics where reports go from now on; null means NONE
+     */
+    public static void install(KeybaseMetrics metrics) {
+        sInstalled = (metrics == null) ? NONE : metrics;
+    }
+    public static KeybaseMetrics get() {
+        return sInstalled;
+    }
+
+    /**
+     * @return false if reports are ignored, so callers can skip work done only to report
+     */
+    public boolean isEnabled() {
+        return true;
+    }
+
+    /**
+     * Something took a while
+     *
+     * @param phase a phase or prover stage
+     */
+    public void time(String scope, String name, String phase, long nanos) {
+    }
+
+    /**
+     * Something happened
+     *
+     * @param event an event or error class
+     */
+    public void count(String scope, String name, String event) {
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2014 Tim Bray <tbray@textuality.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.textuality.keybase.lib;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * The HTTP plumbing underneath Keybase API calls (Search.getFromKeybase) and proof-document
+ *  fetches (prover.Fetch).  The default is HttpTransport; install another one with
+ *  Search.setTransport(), for example to point everything at a local stand-in server in tests.
+ *
+ * A transport doesn’t follow redirects; it returns the 3xx response, and getFromKeybase() or
+ *  Fetch decides where to go next.
+ */
+public interface KeybaseTransport {
+
+    /**
+     * Issues a GET
+     *
+     * @param url absolute URL to retrieve
+     * @param headers extra request headers, may be null
+     * @return the response, which the caller must close()
+     * @throws IOException if the request can't be sent
+     */
+    Response get(String url, Map<String, String> headers) throws IOException;
+
+    interface Response {
+
+        int getStatus() throws IOException;
+
+        /**
+         * @return the URL the response actually came from
+         */
+        String getUrl();
+
+        /**
+         * @return the named response header, or null
+         */
+        String getHeader(String name);
+
+        /**
+         * @return the response body; for non-2xx responses this is the error body.  Never null.
+         */
+        InputStream getBody() throws IOException;
+
+        /**
+         * Done with this response; lets the underlying connection be re-used
+         */
+        void close();
+
+        /**
+         * Abandons the response, from any thread; a read in progress fails and the underlying
+         *  connection is not re-used
+         */
+        void abort();
+    }
+}
@@ -21,24 +21,66 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 
+/**
+ * One search result.  Everything is pulled out of the JSON once, at construction, so the
+ *  getters are just field reads and a Match can be shared between threads.
+ */
 public class Match {
-    private final JSONObject mComponents;
+    final String mUsername;
+    private final String mFullName;
+    final String mFingerprint;
+    private final int mAlgorithmId;
+    private final int mBitStrength;
+    private final List<String> mProofLabels;
+
+    // lower-cased, the values (full-name words) Keybase matched this result on; null if it
+    //  matched on something a prefix test can’t reproduce, such as a key fingerprint
+    final List<String> mMatchedOn;
+
+    private static final JWalk.Path FINGERPRINT = JWalk.compile("key_fingerprint", "val");
+    private static final JWalk.Path ALGORITHM = JWalk.compile("key_fingerprint", "algo");
+    private static final JWalk.Path BITS = JWalk.compile("key_fingerprint", "nbits");
+    private static final JWalk.Path USERNAME = JWalk.compile("username", "val");
+    private static final JWalk.Path FULL_NAME = JWalk.compile("full_name", "val");
+    private static final JWalk.Path TWITTER = JWalk.compile("twitter", "val");
+    private static final JWalk.Path GITHUB = JWalk.compile("github", "val");
+    private static final JWalk.Path WEBSITE = JWalk.compile("val");
 
     public Match(JSONObject json) throws KeybaseException {
+        JSONObject components;
         try {
-            mComponents = JWalk.getObject(json, "components");
+            components = JWalk.getObject(json, "components");
         } catch (JSONException e) {
             throw KeybaseException.keybaseScrewup(e);
         }
+        mUsername = USERNAME.optString(components);
+        mFullName = FULL_NAME.optString(components);
+        mFingerprint = FINGERPRINT.optString(components);
+        mAlgorithmId = ALGORITHM.optInt(components, -1);
+        mBitStrength = BITS.optInt(components, -1);
+        mProofLabels = Collections.unmodifiableList(proofLabels(components));
+        mMatchedOn = matchedOn(components);
     }
+
+    Match(String username, String fullName, String fingerprint, int algorithmId, int bitStrength,
+          List<String> proofLabels) {
+        mUsername = username;
+        mFullName = fullName;
+        mFingerprint = fingerprint;
+        mAlgorithmId = algorithmId;
+        mBitStrength = bitStrength;
+        mProofLabels = Collections.unmodifiableList(proofLabels);
+        mMatchedOn = null;
+    }
+
     public boolean hasKey() throws KeybaseException {
-        try {
-            return (JWalk.optObject(mComponents, "key_fingerprint") != null);
-        } catch (JSONException e) {
-            throw KeybaseException.keybaseScrewup(e);
-        }
+        return (mFingerprint != null);
     }
     public String getKeyID() throws KeybaseException {
         String fingerprint = getFingerprint();
@@ -49,58 +91,96 @@ public class Match {
         return fingerprint.replace(" ", "");
     }
     public String getUsername() throws KeybaseException{
-        try {
-            return JWalk.getString(mComponents, "username", "val");
-        } catch (JSONException e) {
-            throw KeybaseException.keybaseScrewup(e);
-        }
+        return required(mUsername, "username");
     }
     public String getFullName() throws KeybaseException {
-        try {
-            return JWalk.getString(mComponents, "full_name", "val");
-        } catch (JSONException e) {
-            return null;
-        }
+        return mFullName;
     }
     public String getFingerprint() throws KeybaseException {
-        try {
-            return JWalk.getString(mComponents, "key_fingerprint", "val");
-        } catch (JSONException e) {
-            throw KeybaseException.keybaseScrewup(e);
-        }
+        return required(mFingerprint, "key_fingerprint");
     }
     public int getAlgorithmId() throws KeybaseException {
-        try {
-            return JWalk.getInt(mComponents, "key_fingerprint", "algo");
-        } catch (JSONException e) {
-            throw KeybaseException.keybaseScrewup(e);
-        }
+        return required(mAlgorithmId, "key_fingerprint.algo");
     }
     public int getBitStrength() throws KeybaseException {
-        try {
-            return JWalk.getInt(mComponents, "key_fingerprint", "nbits");
-        } catch (JSONException e) {
-            throw KeybaseException.keybaseScrewup(e);
-        }
+        return required(mBitStrength, "key_fingerprint.nbits");
     }
     public List<String> getProofLabels() {
-        ArrayList<String> labels = new ArrayList<String>();
-        try {
-            labels.add("twitter.com/" + JWalk.getString(mComponents, "twitter", "val"));
-        } catch (JSONException e) {
-            // s'OK
+        return mProofLabels;
+    }
+
+    private static List<String> proofLabels(JSONObject components) {
+        ArrayList<String> labels = new ArrayList<String>(3);
+        String twitter = TWITTER.optString(components);
+        if (twitter != null) {
+            labels.add("twitter.com/" + twitter);
         }
-        try {
-            labels.add("github.com/" + JWalk.getString(mComponents, "github", "val"));
-        } catch (JSONException e) {
-            // s'OK
+        String github = GITHUB.optString(components);
+        if (github != null) {
+            labels.add("github.com/" + github);
         }
-        try {
-            JSONArray sites = JWalk.getArray(mComponents, "websites");
-            labels.add(JWalk.getString(sites.getJSONObject(0), "val"));
-        } catch (JSONException e) {
-            // s'OK
+        JSONArray sites = components.optJSONArray("websites");
+        if (sites != null && sites.optJSONObject(0) != null) {
+            String site = WEBSITE.optString(sites.optJSONObject(0));
+            if (site != null) {
+                labels.add(site);
+            }
         }
         return labels;
     }
+
+    // every component with a non-zero score, whether username, full_name, twitter, reddit,
+    //  websites or whatever else Keybase searches
+    private static List<String> matchedOn(JSONObject components) {
+        List<String> values = new ArrayList<String>(2);
+        Iterator<?> keys = components.keys();
+        while (keys.hasNext()) {
+            String key = (String) keys.next();
+            Object component = components.opt(key);
+            if (component instanceof JSONArray) {
+                JSONArray list = (JSONArray) component;
+                for (int i = 0; i < list.length(); i++) {
+                    if (!addMatched(key, list.optJSONObject(i), values)) {
+                        return null;
+                    }
+                }
+            } else if (component instanceof JSONObject) {
+                if (!addMatched(key, (JSONObject) component, values)) {
+                    return null;
+                }
+            }
+        }
+        return values;
+    }
+
+    // false if the component was matched on something other than a plain value
+    private static boolean addMatched(String key, JSONObject component, List<String> values) {
+        if (component == null || component.optDouble("score", 0) <= 0) {
+            return true;
+        }
+        String value = component.optString("val", null);
+        if (value == null || key.equals("key_fingerprint")) {
+            return false;
+        }
+        value = value.toLowerCase(Locale.US);
+        if (key.equals("full_name")) {
+            values.addAll(Arrays.asList(value.split("\\s+")));
+        } else {
+            values.add(value);
+        }
+        return true;
+    }
+
+    private static String required(String value, String what) throws KeybaseException {
+        if (value == null) {
+            throw KeybaseException.queryScrewup("Search result has no " + what);
+        }
+        return value;
+    }
+    private static int required(int value, String what) throws KeybaseException {
+        if (value == -1) {
+            throw KeybaseException.queryScrewup("Search result has no " + what);
+        }
+        return value;
+    }
 }
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2014 Tim Bray <tbray@textuality.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.textuality.keybase.lib;
+
+/**
+ * The little the library needs from its host platform, which is debug logging.
+ *
+ * The Android library uses AndroidPlatform, on android.util; the plain-JVM one (the JvmLib
+ *  module) uses JvmPlatform, on java.util.logging.  Each build carries only its own, so get()
+ *  finds whichever is present by name.  set() replaces it, e.g. to send the library’s logging
+ *  somewhere else.
+ */
+public abstract class Platform {
+
+    private static final String ANDROID = "com.textuality.keybase.lib.AndroidPlatform";
+    private static final String JVM = "com.textuality.keybase.lib.JvmPlatform";
+
+    private static volatile Platform sPlatform = null;
+
+    public static Platform get() {
+        Platform platform = sPlatform;
+        if (platform == null) {
+            platform = load();
+            sPlatform = platform;
+        }
+        return platform;
+    }
+    public static void set(Platform platform) {
+        sPlatform = platform;
+    }
+
+    public abstract void debug(String tag, String message);
+
+    private static Platform load() {
+        String[] candidates = onAndroid() ? new String[] { ANDROID, JVM } : new String[] { JVM, ANDROID };
+        for (String name : candidates) {
+            try {
+                return (Platform) Class.forName(name).newInstance();
+            } catch (ClassNotFoundException e) {
+                // not in this build
+            } catch (InstantiationException e) {
+                throw new IllegalStateException("Can’t create " + name, e);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException("Can’t create " + name, e);
+            } catch (LinkageError e) {
+                // present, but its platform classes aren’t
+            }
+        }
+        throw new IllegalStateException("No Platform implementation; use the Android or JVM build of the library");
+    }
+
+    private static boolean onAndroid() {
+        try {
+            Class.forName("android.os.Build");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+}
@@ -16,128 +16,285 @@
  */
 package com.textuality.keybase.lib;
 
-import android.util.Log;
-
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.HttpURLConnection;
+import java.io.InputStreamReader;
 import java.net.URL;
 import java.net.URLEncoder;
-import java.util.Iterator;
-import java.util.NoSuchElementException;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
 
 public class Search {
     
     private static final String TAG = "KEYBASE-LIB";
 
+    private static final String[] STATUS_CODE = { "status", "code" };
+
+    /**
+     * How many redirects getFromKeybase() follows
+     */
+    public static final int REDIRECT_TRIES = 5;
+
+    private static volatile KeybaseTransport sTransport =
+            new ThrottledTransport(new HttpTransport(), HostScheduler.getDefault());
+    private static volatile KeybaseCache sCache = null;
+    private static volatile HedgePolicy sHedge = null;
+
+    // concurrent identical queries share one request
+    private static final SingleFlight<String, JSONObject> sInFlight = new SingleFlight<String, JSONObject>() {
+        @Override
+        protected JSONObject copy(JSONObject json) {
+            return KeybaseCache.copy(json);
+        }
+    };
+
     public static Iterable<Match> search(String query) throws KeybaseException {
+        return searchMatches(query);
+    }
+
+    /**
+     * Runs a search and builds all the key-bearing results up front.
+     *
+     * @return the matches, in Keybase’s order; an unmodifiable random-access list, so it’s
+     *  cheap to index, and on Java 8 list.parallelStream() splits it evenly for filtering or
+     *  ranking in parallel
+     */
+    public static List<Match> searchMatches(String query) throws KeybaseException {
         JSONObject result = getFromKeybase("_/api/1.0/user/autocomplete.json?q=", query);
         try {
-            return new MatchIterator(JWalk.getArray(result, "completions"));
+            return matchesFrom(JWalk.getArray(result, "completions"));
         } catch (JSONException e) {
             throw KeybaseException.keybaseScrewup(e);
         }
     }
 
+    static List<Match> matchesFrom(JSONArray completions) throws KeybaseException, JSONException {
+        Platform.get().debug(TAG, "match count=" + completions.length());
+        List<Match> matches = new ArrayList<Match>(completions.length());
+        for (int i = 0; i < completions.length(); i++) {
+            Match match = new Match(completions.getJSONObject(i));
+            if (match.hasKey()) {
+                matches.add(match);
+            }
+        }
+        IdentityIndex index = IdentityIndex.getDefault();
+        if (index != null) {
+            index.addAll(matches);
+        }
+        return Collections.unmodifiableList(matches);
+    }
+
+    /**
+     * Runs search() on the executor
+     */
+    public static KeybaseFuture<Iterable<Match>> searchAsync(final String query, Executor executor) {
+        return KeybaseFuture.submit(new Callable<Iterable<Match>>() {
+            @Override
+            public Iterable<Match> call() throws KeybaseException {
+                return search(query);
+            }
+        }, executor);
+    }
+
+    /**
+     * Installs the transport used for Keybase API calls and proof fetches.  The default is an
+     *  HttpTransport behind HostScheduler.getDefault(), which sets no limits until told to but
+     *  does honor Retry-After; wrap a replacement in a ThrottledTransport to keep that.
+     */
+    public static void setTransport(KeybaseTransport transport) {
+        sTransport = transport;
+    }
+    public static KeybaseTransport getTransport() {
+        return sTransport;
+    }
+
+    /**
+     * Installs a cache in front of getFromKeybase(); null, the default, means no caching
+     */
+    public static void setCache(KeybaseCache cache) {
+        sCache = cache;
+    }
+    public static KeybaseCache getCache() {
+        return sCache;
+    }
+
+    /**
+     * Hedges slow keybase.io requests (see HedgePolicy); null, the default, means no hedging
+     */
+    public static void setHedgePolicy(HedgePolicy hedge) {
+        sHedge = hedge;
+    }
+    public static HedgePolicy getHedgePolicy() {
+        return sHedge;
+    }
+
     public static JSONObject getFromKeybase(String path, String query) throws KeybaseException {
+        return getFromKeybase(path, query, (String[][]) null);
+    }
+
+    /**
+     * Like getFromKeybase(path, query), but if any wanted paths are given, the response is
+     *  parsed as it streams in and only those paths are built (see JStream), which is much
+     *  cheaper when you only need a little of a big response.  These sparse results aren’t
+     *  cached.
+     *
+     * Redirects are followed, up to REDIRECT_TRIES of them, as long as they lead to https URLs.
+     *
+     * Threads that make the same query at the same time share a single request to keybase.io,
+     *  and each gets its own copy of the response.
+     *
+     * @param wanted member selector lists as for JWalk
+     */
+    public static JSONObject getFromKeybase(final String path, final String query, final String[]... wanted)
+            throws KeybaseException {
+        final boolean sparse = (wanted != null && wanted.length > 0);
+        final KeybaseCache cache = sCache;
+        if (cache != null) {
+            JSONObject cached = cache.get(path, query);
+            KeybaseMetrics.get().count(KeybaseMetrics.API, path,
+                    (cached == null) ? KeybaseMetrics.CACHE_MISS : KeybaseMetrics.CACHE_HIT);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        String key = path + query;
+        if (sparse) {
+            key += " " + Arrays.deepToString(wanted);
+        }
+        try {
+            final Callable<JSONObject> fetch = new Callable<JSONObject>() {
+                @Override
+                public JSONObject call() throws KeybaseException {
+                    return fetchFromKeybase(path, query, sparse ? wanted : null, cache);
+                }
+            };
+            final HedgePolicy hedge = sHedge;
+            return sInFlight.run(key, (hedge == null) ? fetch : new Callable<JSONObject>() {
+                @Override
+                public JSONObject call() throws Exception {
+                    return hedge.run(fetch);
+                }
+            });
+        } catch (KeybaseException e) {
+            throw e;
+        } catch (Exception e) {
+            throw KeybaseException.networkScrewup(e);
+        }
+    }
+
+    private static JSONObject fetchFromKeybase(String path, String query, String[][] wanted, KeybaseCache cache)
+            throws KeybaseException {
+        boolean sparse = (wanted != null);
+        KeybaseMetrics metrics = KeybaseMetrics.get();
+        String error = KeybaseMetrics.ERROR_NETWORK;
+        long start = System.nanoTime();
+        KeybaseTransport.Response response = null;
         try {
             String url = "https://keybase.io/" + path + URLEncoder.encode(query, "utf8");
 
-            URL realUrl = new URL(url);
-            HttpURLConnection conn = (HttpURLConnection) realUrl.openConnection();
-            conn.setConnectTimeout(5000); // TODO: Reasonable values for keybase
-            conn.setReadTimeout(25000);
-            conn.connect();
-            int response = conn.getResponseCode();
-            if (response >= 200 && response < 300) {
-                String text = snarf(conn.getInputStream());
+            // the transport doesn’t follow redirects, so we do, but only to https URLs
+            int status;
+            long headed;
+            int redirects = 0;
+            while (true) {
+                long hopStart = System.nanoTime();
+                response = sTransport.get(url, null);
+                KeybaseFuture.track(response);
+                long connected = System.nanoTime();
+                metrics.time(KeybaseMetrics.API, path, KeybaseMetrics.CONNECT, connected - hopStart);
+                status = response.getStatus();
+                headed = System.nanoTime();
+                metrics.time(KeybaseMetrics.API, path, KeybaseMetrics.TTFB, headed - connected);
+                String location = response.getHeader("Location");
+                if (!isRedirect(status) || location == null || redirects == REDIRECT_TRIES) {
+                    break;
+                }
+                redirects++;
+                url = new URL(new URL(url), location).toString();
+                if (!url.startsWith("https:")) {
+                    error = KeybaseMetrics.ERROR_REDIRECTS;
+                    throw KeybaseException.networkScrewup("Keybase.io redirected to a non-https URL: " + url);
+                }
+                KeybaseFuture.untrack(response);
+                response.close();
+                response = null;
+            }
+            if (status >= 200 && status < 300) {
                 try {
-                    JSONObject json = new JSONObject(text);
-                    if (JWalk.getInt(json, "status", "code") != 0) {
+                    JSONObject json;
+                    if (sparse) {
+                        String[][] paths = Arrays.copyOf(wanted, wanted.length + 1);
+                        paths[wanted.length] = STATUS_CODE;
+                        BodyReader.LimitedInputStream in =
+                                new BodyReader.LimitedInputStream(response.getBody(), BodyReader.DEFAULT_MAX_BYTES);
+                        try {
+                            json = JStream.extract(new InputStreamReader(in, BodyReader.charset(response)), paths);
+                        } catch (JSONException e) {
+                            // cut off mid-document, most likely
+                            if (in.isTruncated()) {
+                                throw new BodyReader.TooLargeException(BodyReader.DEFAULT_MAX_BYTES);
+                            }
+                            throw e;
+                        }
+                        metrics.time(KeybaseMetrics.API, path, KeybaseMetrics.DOWNLOAD, System.nanoTime() - headed);
+                    } else {
+                        String body = BodyReader.readString(response, BodyReader.DEFAULT_MAX_BYTES);
+                        long downloaded = System.nanoTime();
+                        metrics.time(KeybaseMetrics.API, path, KeybaseMetrics.DOWNLOAD, downloaded - headed);
+                        json = new JSONObject(body);
+                        metrics.time(KeybaseMetrics.API, path, KeybaseMetrics.PARSE, System.nanoTime() - downloaded);
+                    }
+                    if (JWalk.getInt(json, STATUS_CODE) != 0) {
+                        error = KeybaseMetrics.ERROR_QUERY;
                         throw KeybaseException.queryScrewup("Keybase.io query failed: " + path + "?" + query);
                     }
+                    if (cache != null && !sparse) {
+                        cache.put(path, query, json);
+                    }
+                    metrics.time(KeybaseMetrics.API, path, KeybaseMetrics.TOTAL, System.nanoTime() - start);
                     return json;
                 } catch (JSONException e) {
+                    error = KeybaseMetrics.ERROR_PARSE;
                     throw KeybaseException.keybaseScrewup(e);
                 }
             } else {
-                String message = snarf(conn.getErrorStream());
-                throw KeybaseException.networkScrewup("Keybase.io query error (status=" + response + "): " + message);
+                error = KeybaseMetrics.ERROR_STATUS;
+                String message = BodyReader.readString(response, BodyReader.DEFAULT_MAX_BYTES);
+                throw KeybaseException.networkScrewup("Keybase.io query error (status=" + status + "): " + message);
             }
+        } catch (BodyReader.TooLargeException e) {
+            metrics.count(KeybaseMetrics.API, path, KeybaseMetrics.ERROR_TOO_LARGE);
+            throw KeybaseException.networkScrewup(e);
         } catch (Exception e) {
+            metrics.count(KeybaseMetrics.API, path, error);
             throw KeybaseException.networkScrewup(e);
+        } finally {
+            if (response != null) {
+                KeybaseFuture.untrack(response);
+                response.close();
+            }
         }
     }
 
-    public static String snarf(InputStream in)
-            throws IOException {
-        byte[] buf = new byte[1024];
-        int count = 0;
-        ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
-        while ((count = in.read(buf)) != -1) 
-            out.write(buf, 0, count);
-        return out.toString();
+    private static boolean isRedirect(int status) {
+        return status == 301 || status == 302 || status == 303 || status == 307 || status == 308;
     }
 
-    static class MatchIterator implements Iterable<Match>, Iterator<Match> {
-
-        private final JSONArray mMatches;
-        private int mLastIndex;
-        private Match mNextMatch;
-
-        public MatchIterator(JSONArray matches) throws KeybaseException {
-            Log.d(TAG, "match count=" + matches.length());
-            mMatches = matches;
-            mLastIndex = -1;
-            mNextMatch = null;
-            hasNext();
-        }
-        
-        // caches mNextMatch but not the index
-        private int findNext() {
-            try {
-                for (int index = mLastIndex + 1; index < mMatches.length(); index++) {
-                    mNextMatch = new Match(mMatches.getJSONObject(index));
-                    if (mNextMatch.hasKey()) {
-                        return index;
-                    }
-                }
-            } catch (JSONException e) {
-                throw new RuntimeException(KeybaseException.keybaseScrewup(e));
-            } catch (KeybaseException e) {
-                throw new RuntimeException(e);
-            }
-           return -1;
-        }
-
-        @Override
-        public boolean hasNext() {
-            return (findNext() != -1);
-        }
-
-        @Override
-        public Match next() {
-            mLastIndex = findNext();
-            if (mLastIndex == -1) {
-                throw new NoSuchElementException();
-            } else {
-                return mNextMatch;
-            }
-        }
-
-        @Override
-        public void remove() {
-            throw new RuntimeException("UserIterator.remove() not supported");            
-        }
-
-        @Override
-        public Iterator<Match> iterator() {
-            return this;
-        }
+    /**
+     * Reads a whole stream, up to BodyReader.DEFAULT_MAX_BYTES, as UTF-8 text; BodyReader does
+     *  better if you have the Response
+     */
+    public static String snarf(InputStream in)
+            throws IOException {
+        return BodyReader.readString(in, -1, BodyReader.DEFAULT_MAX_BYTES, BodyReader.UTF8);
     }
 }
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2014 Tim Bray <tbray@textuality.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.textuality.keybase.lib;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Collapses concurrent identical requests into one.
+ *
+ * The first request for a key starts the work on an internal executor, not on the caller’s
+ *  thread; it and any others that ask for the same key while it’s in flight wait for it and
+ *  get the same result, or the same exception.  Once the work finishes the key is forgotten,
+ *  so the next request goes out afresh; this is not a cache.
+ *
+ * A caller that is interrupted, or whose KeybaseFuture is cancelled, stops waiting and leaves
+ *  the others to it.  Only when the last caller has gone is the work itself cancelled, along
+ *  with any response it has open.
+ *
+ * The work’s result goes to one caller as-is, and to each of the others as copy(result);
+ *  subclasses whose results are mutable override copy().
+ */
+public class SingleFlight<K, V> {
+
+    private static ExecutorService sDefaultExecutor = null;
+
+    // there are never more threads busy than callers waiting on them
+    private static synchronized ExecutorService defaultExecutor() {
+        if (sDefaultExecutor == null) {
+            sDefaultExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "SingleFlight-" + mCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sDefaultExecutor;
+    }
+
+    private final ConcurrentMap<K, Flight> mInFlight = new ConcurrentHashMap<K, Flight>();
+    private final Executor mExecutor;
+
+    /**
+     * Runs the work on a pool shared by all SingleFlights, which grows as needed
+     */
+    public SingleFlight() {
+        this(null);
+    }
+
+    /**
+     * @param executor where to run the work; if null, the shared pool
+     */
+    public SingleFlight(Executor executor) {
+        mExecutor = (executor == null) ? defaultExecutor() : executor;
+    }
+
+    /**
+     * @param key identifies the request; requests with equal keys must be interchangeable
+     * @param work what to run if no equal request is already in flight
+     * @return the result of the work, or a copy of it
+     */
+    public V run(K key, Callable<V> work) throws Exception {
+        Flight flight;
+        while (true) {
+            flight = mInFlight.get(key);
+            if (flight == null) {
+                Flight fresh = new Flight(key, work);
+                flight = mInFlight.putIfAbsent(key, fresh);
+                if (flight == null) {
+                    flight = fresh;
+                    flight.join();
+                    mExecutor.execute(flight.mTask);
+                    break;
+                }
+            }
+            if (flight.join()) {
+                break;
+            }
+            // its last caller just gave up on it
+            mInFlight.remove(key, flight);
+        }
+        return flight.await();
+    }
+
+    /**
+     * @param result what the work returned
+     * @return a version of the result that can be handed to another caller; the result itself
+     *  unless overridden
+     */
+    protected V copy(V result) {
+        return result;
+    }
+
+    /**
+     * @return how many requests are in flight right now
+     */
+    public int size() {
+        return mInFlight.size();
+    }
+
+    private class Flight {
+        private final K mKey;
+        private final KeybaseFuture<V> mTask;
+        private final AtomicBoolean mClaimed = new AtomicBoolean();
+        private int mWaiters = 0;
+        private boolean mAbandoned = false;
+
+        Flight(K key, Callable<V> work) {
+            mKey = key;
+            mTask = new KeybaseFuture<V>(work) {
+                @Override
+                protected void done() {
+                    mInFlight.remove(mKey, Flight.this);
+                    super.done();
+                }
+            };
+        }
+
+        // false if it’s too late to join
+        synchronized boolean join() {
+            if (mAbandoned) {
+                return false;
+            }
+            mWaiters++;
+            return true;
+        }
+
+        private void leave() {
+            synchronized (this) {
+                if (--mWaiters > 0 || mTask.isDone()) {
+                    return;
+                }
+                mAbandoned = true;
+            }
+            mInFlight.remove(mKey, this);
+            mTask.cancel(true);
+        }
+
+        V await() throws Exception {
+            final AtomicBoolean left = new AtomicBoolean();
+            // so that cancel(false) on the caller’s future counts as leaving too
+            KeybaseFuture.whenCancelled(new Runnable() {
+                @Override
+                public void run() {
+                    if (left.compareAndSet(false, true)) {
+                        leave();
+                    }
+                }
+            });
+            try {
+                V result = mTask.get();
+                return mClaimed.compareAndSet(false, true) ? result : copy(result);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof Exception) {
+                    throw (Exception) cause;
+                }
+                throw (Error) cause;
+            } finally {
+                if (left.compareAndSet(false, true)) {
+                    leave();
+                }
+            }
+        }
+    }
+}
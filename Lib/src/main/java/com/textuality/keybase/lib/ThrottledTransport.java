@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2014 Tim Bray <tbray@textuality.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.textuality.keybase.lib;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Puts another transport’s requests through a HostScheduler.  A request holds one of its
+ *  host’s concurrency slots until its Response is closed or aborted.
+ *
+ * A 429 or 503 response with a Retry-After header makes the scheduler hold off that host for
+ *  as long as it says, up to HostScheduler.MAX_BACK_OFF, and the request is tried once more
+ *  after that, if the wait is no more than MAX_RETRY_WAIT.  A 429 without Retry-After holds
+ *  the host off for DEFAULT_BACK_OFF.
+ */
+public class ThrottledTransport implements KeybaseTransport {
+
+    public static final long MAX_RETRY_WAIT = 30000;
+    public static final long DEFAULT_BACK_OFF = 1000;
+
+    private final KeybaseTransport mTransport;
+    private final HostScheduler mScheduler;
+
+    public ThrottledTransport(KeybaseTransport transport, HostScheduler scheduler) {
+        mTransport = transport;
+        mScheduler = scheduler;
+    }
+
+    public HostScheduler getScheduler() {
+        return mScheduler;
+    }
+
+    @Override
+    public Response get(String url, Map<String, String> headers) throws IOException {
+        String host = new URL(url).getHost();
+        KeybaseMetrics metrics = KeybaseMetrics.get();
+        boolean retried = false;
+        while (true) {
+            long queued = System.nanoTime();
+            try {
+                mScheduler.acquire(host);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting to send to " + host);
+            }
+            metrics.time(KeybaseMetrics.HOST, host, KeybaseMetrics.QUEUE, System.nanoTime() - queued);
+            Response response = null;
+            int status;
+            try {
+                response = mTransport.get(url, headers);
+                status = response.getStatus();
+            } catch (IOException e) {
+                giveUp(response, host);
+                throw e;
+            } catch (RuntimeException e) {
+                giveUp(response, host);
+                throw e;
+            }
+
+            if (status == 429 || status == 503) {
+                metrics.count(KeybaseMetrics.HOST, host, KeybaseMetrics.THROTTLED);
+                long wait = retryAfter(response.getHeader("Retry-After"));
+                if (wait < 0 && status == 429) {
+                    wait = DEFAULT_BACK_OFF;
+                }
+                if (wait >= 0) {
+                    mScheduler.backOff(host, wait);
+                    if (!retried && wait <= MAX_RETRY_WAIT) {
+                        retried = true;
+                        response.close();
+                        mScheduler.release(host);
+                        continue;
+                    }
+                }
+            }
+            return new ThrottledResponse(response, host);
+        }
+    }
+
+    private void giveUp(Response response, String host) {
+        if (response != null) {
+            response.abort();
+        }
+        mScheduler.release(host);
+    }
+
+    // milliseconds from now, at most HostScheduler.MAX_BACK_OFF, or -1 if there’s no usable header
+    static long retryAfter(String header) {
+        if (header == null) {
+            return -1;
+        }
+        header = header.trim();
+        try {
+            long seconds = Long.parseLong(header);
+            return Math.max(0, Math.min(seconds, HostScheduler.MAX_BACK_OFF / 1000) * 1000);
+        } catch (NumberFormatException e) {
+            // maybe an HTTP-date
+        }
+        try {
+            SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+            Date date = format.parse(header);
+            return Math.max(0, Math.min(date.getTime() - System.currentTimeMillis(), HostScheduler.MAX_BACK_OFF));
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+
+    private class ThrottledResponse implements Response {
+        private final Response mResponse;
+        private final String mHost;
+        private boolean mReleased = false;
+
+        ThrottledResponse(Response response, String host) {
+            mResponse = response;
+            mHost = host;
+        }
+
+        @Override
+        public int getStatus() throws IOException {
+            return mResponse.getStatus();
+        }
+
+        @Override
+        public String getUrl() {
+            return mResponse.getUrl();
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return mResponse.getHeader(name);
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            return mResponse.getBody();
+        }
+
+        @Override
+        public void close() {
+            mResponse.close();
+            release();
+        }
+
+        @Override
+        public void abort() {
+            mResponse.abort();
+            release();
+        }
+
+        private synchronized void release() {
+            if (!mReleased) {
+                mReleased = true;
+                mScheduler.release(mHost);
+            }
+        }
+    }
+}
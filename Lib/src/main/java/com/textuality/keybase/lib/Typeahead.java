@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2014 Tim Bray <tbray@textuality.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.textuality.keybase.lib;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Search-as-you-type.  Feed every change in the search box to update(); results arrive at the
+ *  Listener, on one of the executor’s threads.
+ *
+ * - Keystrokes less than debounceMillis apart produce one query, not one each.
+ * - A newer query cancels the one in flight, and stale results are never delivered: the
+ *   Listener is called with the Typeahead locked, so once update() or cancel() returns, it
+ *   hears nothing more about earlier queries.  It mustn’t wait on a thread that’s calling them.
+ * - If an earlier query’s results were complete (Keybase sent less than a full page), then a
+ *   query that extends it, "timb" after "tim", is answered by filtering those results
+ *   locally, with no network round trip.  A result survives if one of the values Keybase
+ *   matched it on starts with the new query; if Keybase matched on anything that can’t be
+ *   checked that way, such as a key fingerprint, the query goes to the network instead.
+ * - Otherwise, if the app has installed an IdentityIndex, identities the library already
+ *   knows about are delivered right away, and then again merged with Keybase’s results when
+ *   those arrive; so the Listener may hear about one query twice.
+ */
+public class Typeahead {
+
+    public interface Listener {
+        void onResults(String query, List<Match> matches);
+
+        /**
+         * @param problem usually a KeybaseException
+         */
+        void onError(String query, Exception problem);
+    }
+
+    /**
+     * Keybase’s autocomplete returns at most this many completions; fewer means that’s all.  If
+     *  it ever sends more, the bigger page size is assumed from then on.
+     */
+    public static final int AUTOCOMPLETE_PAGE = 100;
+
+    // how many IdentityIndex matches to offer while waiting for Keybase
+    private static final int LOCAL_MATCHES = 10;
+
+    private final ScheduledExecutorService mExecutor;
+    private final long mDebounceMillis;
+    private final Listener mListener;
+
+    private long mGeneration = 0;
+    private int mPageSize = AUTOCOMPLETE_PAGE;
+    private ScheduledFuture<?> mPending = null;
+    private KeybaseFuture<Results> mInFlight = null;
+
+    // the last complete result set, and the query that produced it
+    private String mCompletePrefix = null;
+    private List<Match> mCompleteMatches = null;
+
+    public Typeahead(ScheduledExecutorService executor, long debounceMillis, Listener listener) {
+        mExecutor = executor;
+        mDebounceMillis = debounceMillis;
+        mListener = listener;
+    }
+
+    /**
+     * The search text has changed
+     */
+    public synchronized void update(String text) {
+        cancel();
+        final long generation = mGeneration;
+        final String query = text.trim().toLowerCase(Locale.US);
+        if (query.length() == 0) {
+            return;
+        }
+
+        if (mCompletePrefix != null && query.startsWith(mCompletePrefix)) {
+            final List<Match> filtered = filter(mCompleteMatches, query);
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    deliver(generation, query, filtered, null);
+                }
+            });
+            return;
+        }
+
+        final List<Match> local = local(query);
+        if (!local.isEmpty()) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    deliver(generation, query, local, null);
+                }
+            });
+        }
+
+        mPending = mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                send(generation, query, local);
+            }
+        }, mDebounceMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Drops any pending or in-flight query
+     */
+    public synchronized void cancel() {
+        mGeneration++;
+        if (mPending != null) {
+            mPending.cancel(false);
+            mPending = null;
+        }
+        if (mInFlight != null) {
+            mInFlight.cancel(true);
+            mInFlight = null;
+        }
+    }
+
+    private synchronized void send(final long generation, final String query, final List<Match> local) {
+        if (generation != mGeneration) {
+            return;
+        }
+        mInFlight = KeybaseFuture.submit(new Callable<Results>() {
+            @Override
+            public Results call() throws KeybaseException {
+                JSONArray completions;
+                try {
+                    completions = JWalk.getArray(Search.getFromKeybase("_/api/1.0/user/autocomplete.json?q=", query),
+                            "completions");
+                    return new Results(Search.matchesFrom(completions), completions.length());
+                } catch (JSONException e) {
+                    throw KeybaseException.keybaseScrewup(e);
+                }
+            }
+        }, mExecutor);
+        mInFlight.addListener(new KeybaseFuture.Listener<Results>() {
+            @Override
+            public void onSuccess(Results results) {
+                synchronized (Typeahead.this) {
+                    mPageSize = Math.max(mPageSize, results.mCount);
+                    if (generation == mGeneration && results.mCount < mPageSize &&
+                            refinable(results.mMatches, query)) {
+                        mCompletePrefix = query;
+                        mCompleteMatches = results.mMatches;
+                    }
+                }
+                deliver(generation, query, merge(results.mMatches, local), null);
+            }
+
+            @Override
+            public void onFailure(Exception problem) {
+                // a cancelled query is stale, and so isn’t delivered
+                deliver(generation, query, null, problem);
+            }
+        });
+    }
+
+    // under the lock, so that update() and cancel() can’t slip in between the check and the call
+    private synchronized void deliver(long generation, String query, List<Match> matches, Exception problem) {
+        if (generation != mGeneration) {
+            return;
+        }
+        if (problem == null) {
+            mListener.onResults(query, matches);
+        } else {
+            mListener.onError(query, problem);
+        }
+    }
+
+    private static List<Match> local(String query) {
+        List<Match> local = new ArrayList<Match>();
+        IdentityIndex index = IdentityIndex.getDefault();
+        if (index != null) {
+            for (Match match : index.search(query, LOCAL_MATCHES)) {
+                if (match.mFingerprint != null) {
+                    local.add(match);
+                }
+            }
+        }
+        return local;
+    }
+
+    // Keybase’s results first, in its order, then any local ones it didn’t mention
+    private static List<Match> merge(List<Match> remote, List<Match> local) {
+        if (local.isEmpty()) {
+            return remote;
+        }
+        List<Match> merged = new ArrayList<Match>(remote);
+        Set<String> usernames = new HashSet<String>();
+        for (Match match : remote) {
+            usernames.add(match.mUsername);
+        }
+        for (Match match : local) {
+            if (!usernames.contains(match.mUsername)) {
+                merged.add(match);
+            }
+        }
+        return Collections.unmodifiableList(merged);
+    }
+
+    // a match survives if one of the values Keybase matched it on starts with the query
+    private static List<Match> filter(List<Match> matches, String query) {
+        List<Match> filtered = new ArrayList<Match>();
+        for (Match match : matches) {
+            if (matchesPrefix(match, query)) {
+                filtered.add(match);
+            }
+        }
+        return Collections.unmodifiableList(filtered);
+    }
+
+    // true if filter() can be trusted to narrow these results; only so if, for every one, we
+    //  can see why Keybase returned it for this query
+    private static boolean refinable(List<Match> matches, String query) {
+        for (Match match : matches) {
+            if (!matchesPrefix(match, query)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static boolean matchesPrefix(Match match, String query) {
+        if (match.mMatchedOn == null) {
+            return false;
+        }
+        for (String value : match.mMatchedOn) {
+            if (value.startsWith(query)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static class Results {
+        final List<Match> mMatches;
+        // how many completions Keybase sent, keyless ones included
+        final int mCount;
+
+        Results(List<Match> matches, int count) {
+            mMatches = matches;
+            mCount = count;
+        }
+    }
+}
@@ -20,25 +20,111 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class User {
 
     private final JSONObject mJson;
 
+    private static final String[] KEY_PATH = { "them", "public_keys", "primary", "bundle" };
+
+    private static final JWalk.Path USERNAME = JWalk.compile("basics", "username");
+    private static final JWalk.Path FULL_NAME = JWalk.compile("profile", "full_name");
+    private static final JWalk.Path FINGERPRINT = JWalk.compile("public_keys", "primary", "key_fingerprint");
+    private static final JWalk.Path ALGORITHM = JWalk.compile("public_keys", "primary", "key_algo");
+    private static final JWalk.Path BITS = JWalk.compile("public_keys", "primary", "key_bits");
+    private static final JWalk.Path BUNDLE = JWalk.compile("public_keys", "primary", "bundle");
+    private static final JWalk.Path PROOFS = JWalk.compile("proofs_summary", "all");
+
+    private static volatile DiskStore sStore = null;
+    private static volatile long sStoreMaxAge = 0;
+
+    /**
+     * Keeps looked-up users on disk, so that they survive a restart.  Lookups are answered from
+     *  the store while the stored copy is younger than maxAge.
+     *
+     * @param store where to keep them; null turns this off
+     * @param maxAge in milliseconds
+     */
+    public static void setDiskStore(DiskStore store, long maxAge) {
+        sStore = store;
+        sStoreMaxAge = maxAge;
+    }
+
     public static User findByUsername(String username) throws KeybaseException {
+        User user = fromStore(usernameKey(username));
+        if (user != null) {
+            return user;
+        }
         JSONObject json = Search.getFromKeybase("_/api/1.0/user/lookup.json?username=", username);
         try {
             json = JWalk.getObject(json, "them");
         } catch (JSONException e) {
             throw KeybaseException.keybaseScrewup(e);
         }
-        return new User(json);
+        return remember(new User(json));
     }
+    /**
+     * @return the user’s primary key.  Unless there’s a DiskStore, IdentityIndex or KeybaseCache
+     *  to feed, only the key is built out of Keybase’s response, not the whole user.
+     */
     public static String keyForUsername(String username) throws KeybaseException {
-        return findByUsername(username).getKey();
+        if (sStore != null || IdentityIndex.getDefault() != null || Search.getCache() != null) {
+            return findByUsername(username).getKey();
+        }
+        JSONObject json = Search.getFromKeybase("_/api/1.0/user/lookup.json?username=", username, KEY_PATH);
+        try {
+            return JWalk.getString(json, KEY_PATH);
+        } catch (JSONException e) {
+            throw KeybaseException.keybaseScrewup(e);
+        }
+    }
+
+    /**
+     * Runs findByUsername() on the executor
+     */
+    public static KeybaseFuture<User> findByUsernameAsync(final String username, Executor executor) {
+        return KeybaseFuture.submit(new Callable<User>() {
+            @Override
+            public User call() throws KeybaseException {
+                return findByUsername(username);
+            }
+        }, executor);
+    }
+
+    /**
+     * Runs keyForUsername() on the executor
+     */
+    public static KeybaseFuture<String> keyForUsernameAsync(final String username, Executor executor) {
+        return KeybaseFuture.submit(new Callable<String>() {
+            @Override
+            public String call() throws KeybaseException {
+                return keyForUsername(username);
+            }
+        }, executor);
     }
     public static User findByFingerprint(String fingerprint) throws KeybaseException {
+        User user = fromStore(fingerprintKey(fingerprint));
+        if (user != null) {
+            return user;
+        }
         JSONObject json = Search.getFromKeybase("_/api/1.0/user/lookup.json?key_fingerprint=", fingerprint);
         try {
             JSONArray them = JWalk.getArray(json, "them");
@@ -46,24 +132,318 @@ public class User {
                 throw KeybaseException.queryScrewup("Key retrieval produced " + them.length() +
                         " results");
             }
-            return new User(them.getJSONObject(0));
+            return remember(new User(them.getJSONObject(0)));
         } catch (JSONException e) {
             throw KeybaseException.keybaseScrewup(e);
         }
     }
+
+    /**
+     * Looks up many users at once.  Names are sent to Keybase in multi-user requests of up to
+     *  LOOKUP_BATCH_SIZE, which run in parallel, on the executor if one is given, or else on a
+     *  small shared pool.
+     *
+     * @param usernames who to look up
+     * @return a Result for each distinct username, in the order given, keyed by the username in
+     *  lower case; so "TBray" and "tbray" are one lookup, under "tbray"
+     */
+    public static Map<String, Result> findByUsernames(Collection<String> usernames) {
+        return findAll("_/api/1.0/user/lookup.json?usernames=", usernames, false, null);
+    }
+    public static Map<String, Result> findByUsernames(Collection<String> usernames, ExecutorService executor) {
+        return findAll("_/api/1.0/user/lookup.json?usernames=", usernames, false, executor);
+    }
+
+    /**
+     * Looks up the owners of many keys at once; see findByUsernames().  Results are keyed by the
+     *  fingerprint in lower case, without spaces.
+     */
+    public static Map<String, Result> findByFingerprints(Collection<String> fingerprints) {
+        return findAll("_/api/1.0/user/lookup.json?key_fingerprint=", fingerprints, true, null);
+    }
+    public static Map<String, Result> findByFingerprints(Collection<String> fingerprints, ExecutorService executor) {
+        return findAll("_/api/1.0/user/lookup.json?key_fingerprint=", fingerprints, true, executor);
+    }
+
+    public static final int LOOKUP_BATCH_SIZE = 50;
+    private static final int LOOKUP_THREADS = 4;
+
+    // for batch lookups without an executor of their own; daemon threads, never shut down
+    private static ExecutorService sLookupExecutor = null;
+
+    private static synchronized ExecutorService lookupExecutor() {
+        if (sLookupExecutor == null) {
+            sLookupExecutor = Executors.newFixedThreadPool(LOOKUP_THREADS, new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "User-lookup-" + mCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sLookupExecutor;
+    }
+
+    /**
+     * The outcome of looking up one identity in a batch
+     */
+    public static class Result {
+        private final User mUser;
+        private final KeybaseException mProblem;
+
+        Result(User user, KeybaseException problem) {
+            mUser = user;
+            mProblem = problem;
+        }
+
+        /**
+         * @return the user
+         * @throws KeybaseException why this particular lookup failed
+         */
+        public User getUser() throws KeybaseException {
+            if (mProblem != null) {
+                throw mProblem;
+            }
+            return mUser;
+        }
+        public KeybaseException getProblem() {
+            return mProblem;
+        }
+    }
+
+    private static Map<String, Result> findAll(final String path, Collection<String> ids,
+                                               boolean byFingerprint, ExecutorService executor) {
+        Map<String, Result> results = new LinkedHashMap<String, Result>();
+        List<String> wanted = new ArrayList<String>();
+        for (String raw : ids) {
+            String id = byFingerprint ? normalizeFingerprint(raw) : normalizeUsername(raw);
+            if (results.containsKey(id)) {
+                continue;
+            }
+            User user = fromStore(byFingerprint ? fingerprintKey(id) : usernameKey(id));
+            results.put(id, (user == null) ? null : new Result(user, null));
+            if (user == null) {
+                wanted.add(id);
+            }
+        }
+
+        // workers only return their results; only this thread touches the map, so a worker
+        //  that outlives an interrupt can’t change it
+        List<List<String>> batches = new ArrayList<List<String>>();
+        List<Callable<Result[]>> work = new ArrayList<Callable<Result[]>>();
+        for (int start = 0; start < wanted.size(); start += LOOKUP_BATCH_SIZE) {
+            final List<String> batch = wanted.subList(start, Math.min(wanted.size(), start + LOOKUP_BATCH_SIZE));
+            batches.add(batch);
+            work.add(new Callable<Result[]>() {
+                @Override
+                public Result[] call() {
+                    return lookupBatch(path, batch);
+                }
+            });
+        }
+
+        if (batches.size() == 1) {
+            fill(results, wanted, lookupBatch(path, wanted));
+        } else if (batches.size() > 1) {
+            ExecutorService pool = (executor == null) ? lookupExecutor() : executor;
+            try {
+                List<Future<Result[]>> futures = pool.invokeAll(work);
+                for (int i = 0; i < futures.size(); i++) {
+                    try {
+                        fill(results, batches.get(i), futures.get(i).get());
+                    } catch (ExecutionException e) {
+                        Result[] failed = new Result[batches.get(i).size()];
+                        Arrays.fill(failed, new Result(null, KeybaseException.networkScrewup(e)));
+                        fill(results, batches.get(i), failed);
+                    } catch (CancellationException e) {
+                        // left unfilled
+                    }
+                }
+            } catch (InterruptedException e) {
+                // invokeAll() has cancelled the batches still running
+                Thread.currentThread().interrupt();
+            }
+            for (Map.Entry<String, Result> entry : results.entrySet()) {
+                if (entry.getValue() == null) {
+                    entry.setValue(new Result(null, KeybaseException.networkScrewup("Lookup interrupted")));
+                }
+            }
+        }
+        return results;
+    }
+
+    private static void fill(Map<String, Result> results, List<String> batch, Result[] found) {
+        for (int i = 0; i < found.length; i++) {
+            results.put(batch.get(i), found[i]);
+        }
+    }
+
+    // the lookup endpoint answers with one "them" entry per requested identity, null for misses
+    private static Result[] lookupBatch(String path, List<String> batch) {
+        Result[] found = new Result[batch.size()];
+        try {
+            StringBuilder query = new StringBuilder();
+            for (String id : batch) {
+                if (query.length() > 0) {
+                    query.append(',');
+                }
+                query.append(id);
+            }
+            JSONArray them = JWalk.getArray(Search.getFromKeybase(path, query.toString()), "them");
+            if (them.length() != batch.size()) {
+                throw KeybaseException.queryScrewup("Lookup of " + batch.size() + " identities produced " +
+                        them.length() + " results");
+            }
+            for (int i = 0; i < found.length; i++) {
+                JSONObject json = them.optJSONObject(i);
+                if (json == null) {
+                    found[i] = new Result(null, KeybaseException.queryScrewup("No Keybase user for " + batch.get(i)));
+                } else {
+                    found[i] = new Result(remember(new User(json)), null);
+                }
+            }
+        } catch (JSONException e) {
+            Arrays.fill(found, new Result(null, KeybaseException.keybaseScrewup(e)));
+        } catch (KeybaseException e) {
+            Arrays.fill(found, new Result(null, e));
+        }
+        return found;
+    }
+
+    private static String normalizeUsername(String username) {
+        return username.trim().toLowerCase(Locale.US);
+    }
+    private static String normalizeFingerprint(String fingerprint) {
+        return fingerprint.replace(" ", "").toLowerCase(Locale.US);
+    }
+
+    private static String usernameKey(String username) {
+        return "u:" + normalizeUsername(username);
+    }
+    private static String fingerprintKey(String fingerprint) {
+        return "f:" + normalizeFingerprint(fingerprint);
+    }
+
+    // the store is only an optimization, so its failures are treated as misses
+    private static User fromStore(String key) {
+        DiskStore store = sStore;
+        if (store != null) {
+            try {
+                String text = store.get(key, sStoreMaxAge);
+                KeybaseMetrics.get().count(KeybaseMetrics.STORE, "user",
+                        (text == null) ? KeybaseMetrics.CACHE_MISS : KeybaseMetrics.CACHE_HIT);
+                if (text != null) {
+                    return seen(new User(new JSONObject(text)));
+                }
+            } catch (IOException e) {
+                // miss
+            } catch (JSONException e) {
+                // miss
+            }
+        }
+        return null;
+    }
+    private static User remember(User user) {
+        seen(user);
+        DiskStore store = sStore;
+        if (store != null) {
+            try {
+                String fingerprint = user.getFingerprint();
+                if (fingerprint == null) {
+                    store.put(user.mJson.toString(), usernameKey(user.getUsername()));
+                } else {
+                    store.put(user.mJson.toString(), usernameKey(user.getUsername()),
+                            fingerprintKey(fingerprint));
+                }
+            } catch (IOException e) {
+                // not stored, no harm done
+            } catch (KeybaseException e) {
+                // not stored, no harm done
+            }
+        }
+        return user;
+    }
+
+    // feeds the identity index, which will call describe() when it gets round to it
+    private static User seen(final User user) {
+        IdentityIndex index = IdentityIndex.getDefault();
+        if (index != null) {
+            index.add(new IdentityIndex.Source() {
+                @Override
+                public Match describe(Collection<String> handles) {
+                    try {
+                        return user.describe(handles);
+                    } catch (KeybaseException e) {
+                        return null;
+                    } catch (RuntimeException e) {
+                        // ProofIterator’s wrapping of bad JSON
+                        return null;
+                    }
+                }
+            });
+        }
+        return user;
+    }
+
+    private Match describe(Collection<String> handles) throws KeybaseException {
+        List<String> labels = new ArrayList<String>();
+        for (Proof proof : getProofs()) {
+            handles.add(proof.getHandle());
+            switch (proof.getType()) {
+                case Proof.PROOF_TYPE_TWITTER:
+                    labels.add("twitter.com/" + proof.getNametag());
+                    break;
+                case Proof.PROOF_TYPE_GITHUB:
+                    labels.add("github.com/" + proof.getNametag());
+                    break;
+                case Proof.PROOF_TYPE_WEB_SITE:
+                    labels.add(proof.getNametag());
+                    break;
+            }
+        }
+        return new Match(getUsername(), getFullName(), getFingerprint(),
+                ALGORITHM.optInt(mJson, -1),
+                BITS.optInt(mJson, -1),
+                labels);
+    }
+
     private User(JSONObject json) {
         mJson = json;
     }
+    public String getUsername() throws KeybaseException {
+        try {
+            return USERNAME.getString(mJson);
+        } catch (JSONException e) {
+            throw KeybaseException.keybaseScrewup(e);
+        }
+    }
+
+    /**
+     * @return the name from the user’s profile, or null if there isn’t one
+     */
+    public String getFullName() {
+        return FULL_NAME.optString(mJson);
+    }
+
+    /**
+     * @return the primary key’s fingerprint, or null if there isn’t one
+     */
+    public String getFingerprint() {
+        return FINGERPRINT.optString(mJson);
+    }
     public String getKey() throws KeybaseException {
         try {
-            return JWalk.getString(mJson, "public_keys", "primary", "bundle");
+            return BUNDLE.getString(mJson);
         } catch (JSONException e) {
             throw KeybaseException.keybaseScrewup(e);
         }
     }
     public Iterable<Proof> getProofs() throws KeybaseException {
         try {
-            return new ProofIterator(JWalk.getArray(mJson, "proofs_summary", "all"));
+            return new ProofIterator(PROOFS.getArray(mJson));
         } catch (JSONException e) {
             throw KeybaseException.keybaseScrewup(e);
         }
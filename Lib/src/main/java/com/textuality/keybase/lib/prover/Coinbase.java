@@ -37,7 +37,7 @@ public class Coinbase extends Prover {
             String proofUrl = mProof.getProofUrl();
 
             // fetch the post
-            Fetch fetch = new Fetch(proofUrl);
+            Fetch fetch = fetch(proofUrl, null, Fetch.DEFAULT_MAX_BYTES);
             String problem = fetch.problem();
             if (problem != null) {
                 mLog.add(problem);
@@ -17,57 +17,388 @@
 
 package com.textuality.keybase.lib.prover;
 
+import com.textuality.keybase.lib.BodyReader;
+import com.textuality.keybase.lib.KeybaseFuture;
+import com.textuality.keybase.lib.KeybaseMetrics;
+import com.textuality.keybase.lib.KeybaseTransport;
 import com.textuality.keybase.lib.Search;
+import com.textuality.keybase.lib.SingleFlight;
 
 import java.io.IOException;
-import java.net.HttpURLConnection;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 
+/**
+ * Fetches a proof document.
+ *
+ * A prover that knows what it’s looking for can pass a Matcher, and reading stops as soon as
+ *  the Matcher has seen enough.  Either way, no more than maxBytes of body are read; a document
+ *  that’s bigger than that, and where the Matcher didn’t find what it wanted first, counts as
+ *  a failed fetch.
+ *
+ * Threads fetching the same URL at the same time, with equal Matchers (or none), share one
+ *  request.  The Matchers from contains() and upTo() are equal when their text is; any other
+ *  Matcher is equal only to itself.
+ *
+ * Documents that came with an ETag or Last-Modified are kept in a ProofCache and fetched
+ *  conditionally next time.  Such documents are read in full, up to maxBytes, even if the
+ *  Matcher would have stopped sooner, so that the cached copy is complete.
+ *
+ * Redirects (301, 302, 303, 307, 308) are followed, up to REDIRECT_TRIES of them, and
+ *  Locations may be relative.  Permanent ones (301, 308) are remembered, so the next fetch of
+ *  the same URL goes straight to where it ended up.  A redirect from an https URL to anything
+ *  but another https URL fails the fetch.
+ */
 public class Fetch {
 
     private String mProblem = null;
     private String mActualUrl = null;
     private String mBody = null;
+    private boolean mFound = false;
 
     public static final int REDIRECT_TRIES = 5;
+    public static final int MAX_PERMANENT_REDIRECTS = 256;
+    public static final int DEFAULT_MAX_BYTES = 2 * 1024 * 1024;
+
+    private static final int CHUNK = 4096;
+
+    // concurrent fetches of the same document share one request
+    private static final SingleFlight<Key, Fetch> sInFlight = new SingleFlight<Key, Fetch>();
+
+    // where 301s and 308s have sent us, so the next fetch can go straight there
+    private static final LinkedHashMap<String, String> sPermanentRedirects =
+            new LinkedHashMap<String, String>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                    return size() > MAX_PERMANENT_REDIRECTS;
+                }
+            };
+
+    private static volatile ProofCache sProofCache = new ProofCache(ProofCache.DEFAULT_MAX_CHARS);
+
+    /**
+     * Installs the cache of proof documents that fetches revalidate against; null means every
+     *  fetch downloads the document in full.  The default holds ProofCache.DEFAULT_MAX_CHARS.
+     */
+    public static void setProofCache(ProofCache cache) {
+        sProofCache = cache;
+    }
+    public static ProofCache getProofCache() {
+        return sProofCache;
+    }
+
+    private static final Map<String, String> sHeaders = new HashMap<String, String>();
+    static {
+        sHeaders.put("User-Agent", "Keybase Java client, github.com/timbray/KeybaseLib");
+    }
+
+    /**
+     * Looks at the body as it arrives
+     */
+    public interface Matcher {
+        int MORE = 0;  // keep reading
+        int FOUND = 1; // what we’re looking for is there, stop reading
+        int STOP = 2;  // there’s no point reading any further
+
+        /**
+         * @param body everything read so far
+         * @param from where the newly-arrived text starts
+         * @return MORE, FOUND, or STOP
+         */
+        int scan(StringBuilder body, int from);
+    }
+
+    /**
+     * @return a Matcher that stops reading once the text has appeared
+     */
+    public static Matcher contains(String text) {
+        return new TextMatcher(text, Matcher.FOUND);
+    }
+
+    /**
+     * @return a Matcher that stops reading after the boundary, for example "</head>"
+     */
+    public static Matcher upTo(String boundary) {
+        return new TextMatcher(boundary, Matcher.STOP);
+    }
+
+    // equal TextMatchers read the same document the same way, so their fetches can be shared
+    private static class TextMatcher implements Matcher {
+        private final String mText;
+        private final int mVerdict;
+
+        TextMatcher(String text, int verdict) {
+            mText = text;
+            mVerdict = verdict;
+        }
+
+        @Override
+        public int scan(StringBuilder body, int from) {
+            return (body.indexOf(mText, Math.max(0, from - mText.length() + 1)) == -1) ? MORE : mVerdict;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof TextMatcher)) {
+                return false;
+            }
+            TextMatcher other = (TextMatcher) o;
+            return mVerdict == other.mVerdict && mText.equals(other.mText);
+        }
+
+        @Override
+        public int hashCode() {
+            return mText.hashCode() * 31 + mVerdict;
+        }
+    }
 
     public Fetch(String urlString) {
+        this(urlString, null, DEFAULT_MAX_BYTES);
+    }
 
+    /**
+     * @param urlString what to fetch
+     * @param matcher decides when to stop reading; may be null
+     * @param maxBytes the most body to read
+     */
+    public Fetch(final String urlString, final Matcher matcher, final int maxBytes) {
+        Fetch shared;
         try {
-            HttpURLConnection conn = null;
-            int status = 0;
+            shared = sInFlight.run(new Key(urlString, matcher, maxBytes), new Callable<Fetch>() {
+                @Override
+                public Fetch call() {
+                    Fetch fetch = new Fetch();
+                    fetch.fetch(urlString, matcher, maxBytes);
+                    return fetch;
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            mProblem = "Fetch interrupted: " + urlString;
+            return;
+        } catch (Exception e) {
+            mProblem = "Fetch failed: " + e.getLocalizedMessage();
+            return;
+        }
+        mProblem = shared.mProblem;
+        mActualUrl = shared.mActualUrl;
+        mBody = shared.mBody;
+        mFound = shared.mFound;
+    }
+
+    private Fetch() {
+    }
+
+    // a fetch that never happened
+    static Fetch failed(String url, String problem) {
+        Fetch fetch = new Fetch();
+        fetch.mActualUrl = url;
+        fetch.mProblem = problem;
+        return fetch;
+    }
+
+    private void fetch(String urlString, Matcher matcher, int maxBytes) {
+        KeybaseTransport transport = Search.getTransport();
+        ProofCache cache = sProofCache;
+        ProofCache.Entry cached = null;
+        KeybaseMetrics metrics = KeybaseMetrics.get();
+        String host = metrics.isEnabled() ? hostOf(urlString) : null;
+        String error = null;
+        long start = System.nanoTime();
+        KeybaseTransport.Response response = null;
+        try {
+            int status;
             int redirects = 0;
-            while (redirects < REDIRECT_TRIES) {
+            String downgrade = null;
+            List<String> jumpedFrom = new ArrayList<String>();
+            while (true) {
+                String known = permanentRedirect(urlString);
+                if (known != null) {
+                    jumpedFrom.add(urlString);
+                    urlString = known;
+                }
                 mActualUrl = urlString;
-                URL url = new URL(urlString);
-                conn = (HttpURLConnection) url.openConnection();
-                conn.addRequestProperty("User-Agent", "Keybase Java client, github.com/timbray/KeybaseLib");
-                conn.setConnectTimeout(5000); // TODO: Reasonable values
-                conn.setReadTimeout(25000);
-                conn.connect();
-                status = conn.getResponseCode();
-                if (status == 301) {
-                    redirects++;
-                    urlString = conn.getHeaderFields().get("Location").get(0);
-                } else {
+                cached = (cache == null) ? null : cache.get(urlString);
+                long hopStart = System.nanoTime();
+                response = transport.get(urlString, (cached == null) ? sHeaders : cached.conditional(sHeaders));
+                KeybaseFuture.track(response);
+                long connected = System.nanoTime();
+                metrics.time(KeybaseMetrics.FETCH, host, KeybaseMetrics.CONNECT, connected - hopStart);
+                status = response.getStatus();
+                metrics.time(KeybaseMetrics.FETCH, host, KeybaseMetrics.TTFB, System.nanoTime() - connected);
+                String location = response.getHeader("Location");
+                if (!isRedirect(status) || location == null || redirects == REDIRECT_TRIES) {
+                    break;
+                }
+                URL from = new URL(urlString);
+                URL to = new URL(from, location);
+                if (from.getProtocol().equals("https") && !to.getProtocol().equals("https")) {
+                    downgrade = to.toString();
                     break;
                 }
+                redirects++;
+                metrics.count(KeybaseMetrics.FETCH, host, KeybaseMetrics.REDIRECT);
+                String next = to.toString();
+                if (status == 301 || status == 308) {
+                    rememberRedirect(urlString, next);
+                }
+                urlString = next;
+
+                // let the connection go back to the pool before the next hop
+                KeybaseFuture.untrack(response);
+                response.close();
+                response = null;
+            }
+            if (!(status == 304 || (status >= 200 && status < 300))) {
+                // maybe they’re not so permanent; walk the whole chain next time
+                for (String from : jumpedFrom) {
+                    forgetRedirect(from);
+                }
             }
-            if (status >= 200 && status < 300) {
-                mBody = Search.snarf(conn.getInputStream());
+
+            if (downgrade != null) {
+                error = KeybaseMetrics.ERROR_REDIRECTS;
+                mProblem = "Fetch failed, won’t follow a redirect from https to " + downgrade;
+            } else if (isRedirect(status)) {
+                error = KeybaseMetrics.ERROR_REDIRECTS;
+                mProblem = (redirects == REDIRECT_TRIES) ?
+                        "Fetch failed, too many redirects: " + urlString :
+                        "Fetch failed, redirect without a Location: " + urlString;
+            } else if (status == 304 && cached != null) {
+                cache.hit();
+                metrics.count(KeybaseMetrics.FETCH, host, KeybaseMetrics.CACHE_HIT);
+                mBody = cached.mBody;
+                mFound = (matcher != null && matcher.scan(new StringBuilder(mBody), 0) == Matcher.FOUND);
+            } else if (BodyReader.contentLength(response) > maxBytes) {
+                error = KeybaseMetrics.ERROR_TOO_LARGE;
+                mProblem = "Fetch failed, document is larger than " + maxBytes + " bytes";
+                response.abort();
+            } else if (status >= 200 && status < 300) {
+                String eTag = response.getHeader("ETag");
+                String lastModified = response.getHeader("Last-Modified");
+                String cacheControl = response.getHeader("Cache-Control");
+                boolean cacheable = (cache != null && (eTag != null || lastModified != null) &&
+                        (cacheControl == null || !cacheControl.contains("no-store")));
+                if (cache != null) {
+                    metrics.count(KeybaseMetrics.FETCH, host, KeybaseMetrics.CACHE_MISS);
+                }
+                long downloading = System.nanoTime();
+                if (read(response, matcher, maxBytes, cacheable)) {
+                    cache.put(mActualUrl, eTag, lastModified, mBody);
+                }
+                metrics.time(KeybaseMetrics.FETCH, host, KeybaseMetrics.DOWNLOAD, System.nanoTime() - downloading);
+                if (mProblem != null) {
+                    error = KeybaseMetrics.ERROR_TOO_LARGE;
+                }
             } else {
-                mProblem = "Fetch failed, status " + status + ": " + Search.snarf(conn.getErrorStream());
+                error = KeybaseMetrics.ERROR_STATUS;
+                BodyReader.LimitedInputStream in = new BodyReader.LimitedInputStream(response.getBody(), maxBytes);
+                mProblem = "Fetch failed, status " + status + ": " +
+                        BodyReader.readString(in, -1, maxBytes, BodyReader.charset(response));
             }
 
         } catch (MalformedURLException e) {
+            error = KeybaseMetrics.ERROR_NETWORK;
             mProblem = "Bad URL: " + urlString;
-            return;
         } catch (IOException e) {
+            error = KeybaseMetrics.ERROR_NETWORK;
             mProblem = "Network error: " + e.getLocalizedMessage();
-            return;
+        } finally {
+            if (response != null) {
+                KeybaseFuture.untrack(response);
+                response.close();
+            }
         }
 
+        if (error == null) {
+            metrics.time(KeybaseMetrics.FETCH, host, KeybaseMetrics.TOTAL, System.nanoTime() - start);
+        } else {
+            metrics.count(KeybaseMetrics.FETCH, host, error);
+        }
+    }
+
+    private static String hostOf(String url) {
+        try {
+            return new URL(url).getHost();
+        } catch (MalformedURLException e) {
+            return url;
+        }
+    }
+
+    // returns true if whole was asked for and the whole body was read
+    private boolean read(KeybaseTransport.Response response, Matcher matcher, int maxBytes, boolean whole)
+            throws IOException {
+        BodyReader.LimitedInputStream in = new BodyReader.LimitedInputStream(response.getBody(), maxBytes);
+        if (matcher == null || whole) {
+            mBody = BodyReader.readString(in, BodyReader.contentLength(response), maxBytes,
+                    BodyReader.charset(response));
+            mFound = (matcher != null && matcher.scan(new StringBuilder(mBody), 0) == Matcher.FOUND);
+        } else {
+            Reader reader = new InputStreamReader(in, BodyReader.charset(response));
+            StringBuilder body = new StringBuilder();
+            char[] chunk = new char[CHUNK];
+            int count;
+            int verdict = Matcher.MORE;
+            while (verdict == Matcher.MORE && (count = reader.read(chunk)) != -1) {
+                int from = body.length();
+                body.append(chunk, 0, count);
+                verdict = matcher.scan(body, from);
+            }
+            mFound = (verdict == Matcher.FOUND);
+            mBody = body.toString();
+        }
+        if (in.isTruncated() && !mFound) {
+            mProblem = "Fetch failed, document is larger than " + maxBytes + " bytes";
+            mBody = null;
+            response.abort();
+        }
+        return whole && !in.isTruncated();
+    }
+
+    private static boolean isRedirect(int status) {
+        return status == 301 || status == 302 || status == 303 || status == 307 || status == 308;
+    }
+
+    // the end of the chain of remembered permanent redirects starting at url, or null
+    private static String permanentRedirect(String url) {
+        String target = null;
+        synchronized (sPermanentRedirects) {
+            for (int i = 0; i < REDIRECT_TRIES; i++) {
+                String next = sPermanentRedirects.get(url);
+                if (next == null) {
+                    break;
+                }
+                target = url = next;
+            }
+        }
+        return target;
+    }
+
+    private static void rememberRedirect(String from, String to) {
+        synchronized (sPermanentRedirects) {
+            sPermanentRedirects.put(from, to);
+        }
+    }
+
+    private static void forgetRedirect(String from) {
+        synchronized (sPermanentRedirects) {
+            sPermanentRedirects.remove(from);
+        }
+    }
+
+    /**
+     * @return true if the Matcher found what it was looking for
+     */
+    public boolean isFound() {
+        return mFound;
     }
 
     public String problem() {
@@ -80,4 +411,30 @@ public class Fetch {
         return mBody;
     }
 
+    private static class Key {
+        private final String mUrl;
+        private final Matcher mMatcher;
+        private final int mMaxBytes;
+
+        Key(String url, Matcher matcher, int maxBytes) {
+            mUrl = url;
+            mMatcher = matcher;
+            mMaxBytes = maxBytes;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return mUrl.equals(other.mUrl) && mMaxBytes == other.mMaxBytes &&
+                    ((mMatcher == null) ? other.mMatcher == null : mMatcher.equals(other.mMatcher));
+        }
+
+        @Override
+        public int hashCode() {
+            return (mUrl.hashCode() * 31 + mMaxBytes) * 31 + ((mMatcher == null) ? 0 : mMatcher.hashCode());
+        }
+    }
 }
@@ -41,7 +41,7 @@ public class GitHub extends Prover {
             String nametag = mProof.getNametag();
 
             // fetch the gist
-            Fetch fetch = new Fetch(markdownURL);
+            Fetch fetch = fetch(markdownURL, Fetch.contains(mPgpMessage), Fetch.DEFAULT_MAX_BYTES);
             String problem = fetch.problem();
             if (problem != null) {
                 mLog.add(problem);
@@ -73,7 +73,7 @@ public class GitHub extends Prover {
             }
 
             // verify that message appears in gist
-            if (!fetch.getBody().contains(mPgpMessage)) {
+            if (!fetch.isFound()) {
                 mLog.add("GitHub gist doesn’t contain signed PGP message");
                 return false;
             }
@@ -40,7 +40,7 @@ public class HackerNews extends Prover {
             // The api form is off at firebasio, so we’ll use the proof URL
             String hnUrl = mProof.getProofUrl();
 
-            Fetch fetch = new Fetch(hnUrl);
+            Fetch fetch = fetch(hnUrl, Fetch.contains(mShortenedMessageHash), Fetch.DEFAULT_MAX_BYTES);
             String problem = fetch.problem();
             if (problem != null) {
                 mLog.add(problem);
@@ -61,7 +61,7 @@ public class HackerNews extends Prover {
                 return false;
             }
 
-            if (!(fetch.getBody().contains(mShortenedMessageHash))) {
+            if (!fetch.isFound()) {
                 mLog.add("Hacker News post doesn’t contain signed PGP message");
                 return false;
             }
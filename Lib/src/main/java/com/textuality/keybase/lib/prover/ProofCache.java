@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2014 Tim Bray <tbray@textuality.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.textuality.keybase.lib.prover;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Proof documents Fetch has seen, with the validators (ETag, Last-Modified) their servers
+ *  sent.  When a document is fetched again, Fetch asks the server whether it has changed, and
+ *  a 304 Not Modified means the copy here is used, with no body transferred.
+ *
+ * Entries are keyed by the URL the document was finally fetched from.  Only complete bodies
+ *  that came with a validator are kept.  The cache is bounded by the total length of the
+ *  bodies it holds, and drops the least recently used first.
+ *
+ * Install one with Fetch.setProofCache().
+ */
+public class ProofCache {
+
+    public static final long DEFAULT_MAX_CHARS = 1024 * 1024;
+
+    private final long mMaxChars;
+    private long mChars = 0;
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private final AtomicLong mHits = new AtomicLong();
+
+    /**
+     * @param maxChars the most body text to hold, summed over all entries
+     */
+    public ProofCache(long maxChars) {
+        mMaxChars = maxChars;
+    }
+
+    synchronized Entry get(String url) {
+        return mEntries.get(url);
+    }
+
+    synchronized void put(String url, String eTag, String lastModified, String body) {
+        Entry old = mEntries.remove(url);
+        if (old != null) {
+            mChars -= old.mBody.length();
+        }
+        if (body.length() > mMaxChars) {
+            return;
+        }
+        mEntries.put(url, new Entry(body, eTag, lastModified));
+        mChars += body.length();
+        Iterator<Entry> eldest = mEntries.values().iterator();
+        while (mChars > mMaxChars && eldest.hasNext()) {
+            mChars -= eldest.next().mBody.length();
+            eldest.remove();
+        }
+    }
+
+    void hit() {
+        mHits.incrementAndGet();
+    }
+
+    public synchronized void invalidateAll() {
+        mEntries.clear();
+        mChars = 0;
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * @return how many fetches were answered from here after a 304
+     */
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    static class Entry {
+        final String mBody;
+        private final String mETag;
+        private final String mLastModified;
+
+        Entry(String body, String eTag, String lastModified) {
+            mBody = body;
+            mETag = eTag;
+            mLastModified = lastModified;
+        }
+
+        // the request headers plus the validators
+        Map<String, String> conditional(Map<String, String> headers) {
+            Map<String, String> conditional = new HashMap<String, String>(headers);
+            if (mETag != null) {
+                conditional.put("If-None-Match", mETag);
+            }
+            if (mLastModified != null) {
+                conditional.put("If-Modified-Since", mLastModified);
+            }
+            return conditional;
+        }
+    }
+}
@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2014 Tim Bray <tbray@textuality.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.textuality.keybase.lib.prover;
+
+import com.textuality.keybase.lib.KeybaseException;
+import com.textuality.keybase.lib.KeybaseMetrics;
+import com.textuality.keybase.lib.Proof;
+import com.textuality.keybase.lib.User;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Verifies all of a user’s proofs at once, running each through the five Prover steps (see
+ *  Prover), concurrently.  So checking a profile takes about as long as its slowest proof.
+ *
+ * As with Prover, the caller supplies the OpenPGP and DNS machinery, via a Checker.
+ *
+ * At most perHostLimit proof documents are fetched from any one host at a time, so that a
+ *  user with several proofs on one site doesn’t hammer it.  The host is that of the URL
+ *  actually fetched, which for some provers (GitHub, Web site) is the sig’s api_url rather than
+ *  the proof_url.
+ *
+ * Without an executor of its own, a ProofVerifier runs proofs on a pool of DEFAULT_THREADS
+ *  daemon threads shared by all ProofVerifiers.
+ */
+public class ProofVerifier {
+
+    public interface Checker {
+
+        /**
+         * Checks the message is signed by the key with the given fingerprint
+         *
+         * @return the signed content, or null if the signature doesn’t check out
+         */
+        String checkSignature(String pgpMessage, String fingerprint);
+
+        /**
+         * @return the domain’s TXT records, each a list of byte[] extents; null if lookup failed
+         */
+        List<List<byte[]>> fetchDnsTxt(String domain);
+
+        /**
+         * @return the raw (de-armored) bytes of the message
+         */
+        InputStream rawMessageBytes(String pgpMessage);
+    }
+
+    /**
+     * How one proof fared
+     */
+    public static class Outcome {
+        private final Proof mProof;
+        private final boolean mVerified;
+        private final long mElapsedMillis;
+        private final List<String> mLog;
+
+        Outcome(Proof proof, boolean verified, long elapsedMillis, List<String> log) {
+            mProof = proof;
+            mVerified = verified;
+            mElapsedMillis = elapsedMillis;
+            mLog = log;
+        }
+
+        public Proof getProof() {
+            return mProof;
+        }
+        public boolean isVerified() {
+            return mVerified;
+        }
+        public long getElapsedMillis() {
+            return mElapsedMillis;
+        }
+        public List<String> getLog() {
+            return mLog;
+        }
+    }
+
+    /**
+     * How all of a user’s proofs fared
+     */
+    public static class Report {
+        private final List<Outcome> mOutcomes;
+        private final long mElapsedMillis;
+
+        Report(List<Outcome> outcomes, long elapsedMillis) {
+            mOutcomes = Collections.unmodifiableList(outcomes);
+            mElapsedMillis = elapsedMillis;
+        }
+
+        public List<Outcome> getOutcomes() {
+            return mOutcomes;
+        }
+        public long getElapsedMillis() {
+            return mElapsedMillis;
+        }
+        public boolean allVerified() {
+            for (Outcome outcome : mOutcomes) {
+                if (!outcome.isVerified()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    public static final int DEFAULT_THREADS = 16;
+
+    private static ExecutorService sDefaultExecutor = null;
+
+    private static synchronized ExecutorService defaultExecutor() {
+        if (sDefaultExecutor == null) {
+            sDefaultExecutor = Executors.newFixedThreadPool(DEFAULT_THREADS, new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "ProofVerifier-" + mCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sDefaultExecutor;
+    }
+
+    private final Checker mChecker;
+    private final ExecutorService mExecutor;
+    private final int mPerHostLimit;
+    private final ConcurrentMap<String, Semaphore> mHostPermits = new ConcurrentHashMap<String, Semaphore>();
+
+    /**
+     * @param checker signature and DNS support
+     * @param executor where to run the proofs; if null, a shared pool of DEFAULT_THREADS
+     * @param perHostLimit maximum concurrent fetches from any one host, at least 1
+     * @throws IllegalArgumentException if perHostLimit is less than 1
+     */
+    public ProofVerifier(Checker checker, ExecutorService executor, int perHostLimit) {
+        if (perHostLimit < 1) {
+            throw new IllegalArgumentException("ProofVerifier: perHostLimit " + perHostLimit + " < 1");
+        }
+        mChecker = checker;
+        mExecutor = (executor == null) ? defaultExecutor() : executor;
+        mPerHostLimit = perHostLimit;
+    }
+
+    public Report verify(User user) throws KeybaseException {
+        long start = System.nanoTime();
+        final String fingerprint = user.getFingerprint();
+        List<Callable<Outcome>> work = new ArrayList<Callable<Outcome>>();
+        for (final Proof proof : user.getProofs()) {
+            work.add(new Callable<Outcome>() {
+                @Override
+                public Outcome call() {
+                    return verify(proof, fingerprint);
+                }
+            });
+        }
+
+        List<Outcome> outcomes = new ArrayList<Outcome>();
+        if (work.isEmpty()) {
+            return new Report(outcomes, 0);
+        }
+        try {
+            for (Future<Outcome> future : mExecutor.invokeAll(work)) {
+                outcomes.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw KeybaseException.networkScrewup("Proof verification interrupted");
+        } catch (ExecutionException e) {
+            throw KeybaseException.networkScrewup(e);
+        }
+        return new Report(outcomes, (System.nanoTime() - start) / 1000000);
+    }
+
+    private Outcome verify(Proof proof, String fingerprint) {
+        long start = System.nanoTime();
+        Prover prover = Prover.findProverFor(proof);
+        if (prover == null) {
+            List<String> log = new ArrayList<String>();
+            log.add("No prover for " + proof.getPrettyName() + " proofs");
+            return new Outcome(proof, false, 0, log);
+        }
+
+        prover.mVerifier = this;
+        boolean verified;
+        try {
+            verified = runSteps(prover, fingerprint);
+        } finally {
+            prover.mVerifier = null;
+        }
+        long elapsed = System.nanoTime() - start;
+        KeybaseMetrics metrics = KeybaseMetrics.get();
+        metrics.time(KeybaseMetrics.PROOF, proof.getPrettyName(), KeybaseMetrics.TOTAL, elapsed);
+        metrics.count(KeybaseMetrics.PROOF, proof.getPrettyName(),
+                verified ? KeybaseMetrics.VERIFIED : KeybaseMetrics.NOT_VERIFIED);
+        return new Outcome(proof, verified, elapsed / 1000000, prover.getLog());
+    }
+
+    private boolean runSteps(Prover prover, String fingerprint) {
+        KeybaseMetrics metrics = KeybaseMetrics.get();
+        String type = prover.mProof.getPrettyName();
+        long start = System.nanoTime();
+        boolean fetched = prover.fetchProofData();
+        long mark = System.nanoTime();
+        metrics.time(KeybaseMetrics.PROOF, type, KeybaseMetrics.STAGE_FETCH, mark - start);
+        if (!fetched) {
+            return false;
+        }
+
+        String pgpMessage = prover.getPgpMessage();
+        String signed = (fingerprint == null) ? null : mChecker.checkSignature(pgpMessage, fingerprint);
+        mark = lap(metrics, type, KeybaseMetrics.STAGE_SIGNATURE, mark);
+        if (signed == null) {
+            prover.getLog().add("Proof isn’t signed by the user’s primary key");
+            return false;
+        }
+
+        String domain = prover.dnsTxtCheckRequired();
+        if (domain != null) {
+            List<List<byte[]>> records = mChecker.fetchDnsTxt(domain);
+            if (records == null) {
+                prover.getLog().add("DNS TXT lookup failed for " + domain);
+                return false;
+            }
+            boolean checked = prover.checkDnsTxt(records);
+            mark = lap(metrics, type, KeybaseMetrics.STAGE_DNS, mark);
+            if (!checked) {
+                return false;
+            }
+        }
+
+        if (prover.rawMessageCheckRequired()) {
+            InputStream raw = mChecker.rawMessageBytes(pgpMessage);
+            if (raw == null) {
+                prover.getLog().add("Couldn’t get the message’s raw bytes");
+                return false;
+            }
+            boolean checked;
+            try {
+                checked = prover.checkRawMessageBytes(raw);
+            } finally {
+                try {
+                    raw.close();
+                } catch (IOException e) {
+                    // nothing to be done
+                }
+            }
+            mark = lap(metrics, type, KeybaseMetrics.STAGE_RAW_MESSAGE, mark);
+            if (!checked) {
+                return false;
+            }
+        }
+
+        boolean valid = prover.validate(signed);
+        lap(metrics, type, KeybaseMetrics.STAGE_VALIDATE, mark);
+        if (!valid) {
+            prover.getLog().add("Signed content doesn’t match Keybase payload");
+            return false;
+        }
+        return true;
+    }
+
+    private static long lap(KeybaseMetrics metrics, String type, String stage, long since) {
+        long now = System.nanoTime();
+        metrics.time(KeybaseMetrics.PROOF, type, stage, now - since);
+        return now;
+    }
+
+    // a prover’s fetch, holding one of its host’s permits
+    Fetch fetch(String url, Fetch.Matcher matcher, int maxBytes) {
+        Semaphore permits = permitsFor(hostOf(url));
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Fetch.failed(url, "Fetch interrupted: " + url);
+        }
+        try {
+            return new Fetch(url, matcher, maxBytes);
+        } finally {
+            permits.release();
+        }
+    }
+
+    private Semaphore permitsFor(String host) {
+        Semaphore permits = mHostPermits.get(host);
+        if (permits == null) {
+            Semaphore fresh = new Semaphore(mPerHostLimit, true);
+            permits = mHostPermits.putIfAbsent(host, fresh);
+            if (permits == null) {
+                permits = fresh;
+            }
+        }
+        return permits;
+    }
+
+    private static String hostOf(String url) {
+        try {
+            return new URL(url).getHost().toLowerCase(Locale.US);
+        } catch (MalformedURLException e) {
+            return url;
+        }
+    }
+}
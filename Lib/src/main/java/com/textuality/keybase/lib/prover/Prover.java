@@ -17,24 +17,35 @@
 
 package com.textuality.keybase.lib.prover;
 
-import android.util.Base64;
-
 import com.textuality.keybase.lib.JWalk;
+import com.textuality.keybase.lib.KeybaseFuture;
 import com.textuality.keybase.lib.KeybaseException;
+import com.textuality.keybase.lib.KeybaseMetrics;
 import com.textuality.keybase.lib.Proof;
 import com.textuality.keybase.lib.Search;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Supports Keybase proof verification.  This is self-contained with no dependencies, except on
@@ -71,6 +82,24 @@ public abstract class Prover {
     final Proof mProof;
     final List<String> mLog = new ArrayList<String>();
 
+    // set while a ProofVerifier runs this prover, to pace its fetches per host
+    volatile ProofVerifier mVerifier = null;
+
+    public static final int DEFAULT_SIG_STORE_SIZE = 256;
+
+    private static volatile SigStore sSigStore = new SigStore(DEFAULT_SIG_STORE_SIZE, null);
+
+    /**
+     * Installs the store that sigs are kept in between verifications; null means fetch the sig
+     *  from keybase.io every time.  The default holds DEFAULT_SIG_STORE_SIZE sigs in memory.
+     */
+    public static void setSigStore(SigStore store) {
+        sSigStore = store;
+    }
+    public static SigStore getSigStore() {
+        return sSigStore;
+    }
+
     public static Prover findProverFor(Proof proof) {
         switch (proof.getType()) {
             case Proof.PROOF_TYPE_TWITTER: return new Twitter(proof);
@@ -90,6 +119,24 @@ public abstract class Prover {
 
     abstract public boolean fetchProofData();
 
+    /**
+     * Runs fetchProofData() on the executor
+     */
+    public KeybaseFuture<Boolean> fetchProofDataAsync(Executor executor) {
+        return KeybaseFuture.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return fetchProofData();
+            }
+        }, executor);
+    }
+
+    // provers fetch their documents through here, not with new Fetch()
+    Fetch fetch(String url, Fetch.Matcher matcher, int maxBytes) {
+        ProofVerifier verifier = mVerifier;
+        return (verifier == null) ? new Fetch(url, matcher, maxBytes) : verifier.fetch(url, matcher, maxBytes);
+    }
+
     public String getPgpMessage() {
         return mPgpMessage;
     }
@@ -104,11 +151,30 @@ public abstract class Prover {
 
     JSONObject readSig(String sigId) throws JSONException, KeybaseException {
 
-        // fetch the sig
-        JSONObject sigJSON = Search.getFromKeybase("_/api/1.0/sig/get.json?sig_id=", sigId);
-        mLog.add("Successfully retrieved sig from Keybase");
+        SigStore store = sSigStore;
+        JSONObject sigJSON = null;
+        if (store != null) {
+            sigJSON = store.get(sigId);
+            KeybaseMetrics.get().count(KeybaseMetrics.STORE, "sig",
+                    (sigJSON == null) ? KeybaseMetrics.CACHE_MISS : KeybaseMetrics.CACHE_HIT);
+        }
+        if (sigJSON != null) {
+            mLog.add("Retrieved sig from local store");
+        } else {
+            // fetch the sig
+            sigJSON = Search.getFromKeybase("_/api/1.0/sig/get.json?sig_id=", sigId);
+            mLog.add("Successfully retrieved sig from Keybase");
 
-        sigJSON = JWalk.getArray(sigJSON, "sigs").getJSONObject(0);
+            sigJSON = JWalk.getArray(sigJSON, "sigs").getJSONObject(0);
+            if (store != null) {
+                // only file it under the id asked for if that’s really what it is
+                if (sigId.equals(sigJSON.optString("sig_id"))) {
+                    sigJSON = store.put(sigId, sigJSON);
+                } else {
+                    mLog.add("Keybase returned a sig other than " + sigId + "; not storing it");
+                }
+            }
+        }
         mPayload = JWalk.getString(sigJSON, "payload_json");
         mPgpMessage = JWalk.getString(sigJSON, "sig");
 
@@ -121,28 +187,225 @@ public abstract class Prover {
         return false;
     }
 
+    /**
+     * Reads the stream to its end; closing it is up to the caller
+     */
     public boolean checkRawMessageBytes(InputStream in) {
+        Hasher hasher = sHasher.get();
+        if (hasher == null) {
+            mLog.add("SHA-256 not available");
+            return false;
+        }
         try {
-            MessageDigest digester = MessageDigest.getInstance("SHA-256");
-            byte[] buffer = new byte[8192];
+            MessageDigest digester = hasher.mDigest;
+            digester.reset();
+            byte[] buffer = hasher.mBuffer;
             int byteCount;
             while ((byteCount = in.read(buffer)) > 0) {
                 digester.update(buffer, 0, byteCount);
             }
-            String digest = Base64.encodeToString(digester.digest(), Base64.URL_SAFE);
-            if (!digest.startsWith(mShortenedMessageHash)) {
-                mLog.add("Proof post doesn’t contain correct encoded message.");
-                return false;
-            }
-            return true;
-        } catch (NoSuchAlgorithmException e) {
+            return hashMatches(hasher);
+        } catch (IOException e) {
+            mLog.add("Error checking raw message: " + e.getLocalizedMessage());
+        }
+        return false;
+    }
+
+    /**
+     * As checkRawMessageBytes(InputStream), for bytes already in memory; reads the buffer from
+     *  its position to its limit, without moving either
+     */
+    public boolean checkRawMessageBytes(ByteBuffer message) {
+        Hasher hasher = sHasher.get();
+        if (hasher == null) {
             mLog.add("SHA-256 not available");
+            return false;
+        }
+        hasher.mDigest.reset();
+        hasher.mDigest.update(message.duplicate());
+        return hashMatches(hasher);
+    }
+
+    /**
+     * As checkRawMessageBytes(InputStream), for a file of raw message bytes, which is
+     *  memory-mapped rather than read
+     */
+    public boolean checkRawMessageBytes(File message) {
+        Hasher hasher = sHasher.get();
+        if (hasher == null) {
+            mLog.add("SHA-256 not available");
+            return false;
+        }
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(message);
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            hasher.mDigest.reset();
+            for (long position = 0; position < size; position += MAP_CHUNK) {
+                hasher.mDigest.update(channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(MAP_CHUNK, size - position)));
+            }
+            return hashMatches(hasher);
         } catch (IOException e) {
             mLog.add("Error checking raw message: " + e.getLocalizedMessage());
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nothing to be done
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks many provers’ raw messages at once, each as checkRawMessageBytes(ByteBuffer) would,
+     *  splitting the work evenly across a shared pool of one thread per core, or across the
+     *  executor’s threads.
+     *
+     * @param provers each must have had fetchProofData() succeed
+     * @param messages the raw bytes for each prover, in the same order
+     * @return whether each prover’s check passed, in the same order
+     */
+    public static boolean[] checkRawMessageBytes(List<? extends Prover> provers, List<ByteBuffer> messages) {
+        return checkRawMessageBytes(provers, messages, null);
+    }
+    public static boolean[] checkRawMessageBytes(final List<? extends Prover> provers, final List<ByteBuffer> messages,
+                                                 ExecutorService executor) {
+        if (provers.size() != messages.size()) {
+            throw new IllegalArgumentException(provers.size() + " provers but " + messages.size() + " messages");
+        }
+        final boolean[] checked = new boolean[provers.size()];
+        int slices = Math.min(checked.length, Runtime.getRuntime().availableProcessors());
+        if (slices <= 1) {
+            checkSlice(provers, messages, 0, checked.length, checked);
+            return checked;
+        }
+
+        List<Callable<Void>> work = new ArrayList<Callable<Void>>(slices);
+        for (int i = 0; i < slices; i++) {
+            final int from = (int) ((long) checked.length * i / slices);
+            final int to = (int) ((long) checked.length * (i + 1) / slices);
+            work.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    checkSlice(provers, messages, from, to, checked);
+                    return null;
+                }
+            });
+        }
+        ExecutorService pool = (executor == null) ? checkExecutor() : executor;
+        try {
+            // unfinished checks stay false
+            pool.invokeAll(work);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+        return checked;
+    }
+
+    // for batch checks without an executor of their own; daemon threads, never shut down
+    private static ExecutorService sCheckExecutor = null;
+
+    private static synchronized ExecutorService checkExecutor() {
+        if (sCheckExecutor == null) {
+            sCheckExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                    new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "Prover-check-" + mCount.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        return sCheckExecutor;
+    }
+
+    private static void checkSlice(List<? extends Prover> provers, List<ByteBuffer> messages, int from, int to,
+                                   boolean[] checked) {
+        for (int i = from; i < to; i++) {
+            checked[i] = provers.get(i).checkRawMessageBytes(messages.get(i));
+        }
+    }
+
+    private boolean hashMatches(Hasher hasher) {
+        try {
+            int length = hasher.mDigest.digest(hasher.mHash, 0, hasher.mHash.length);
+            if (mShortenedMessageHash != null && base64UrlStartsWith(hasher.mHash, length, mShortenedMessageHash)) {
+                return true;
+            }
+        } catch (DigestException e) {
+            mLog.add("SHA-256 failed: " + e.getLocalizedMessage());
+            return false;
+        }
+        mLog.add("Proof post doesn’t contain correct encoded message.");
         return false;
     }
 
+    private static final char[] BASE64_URL =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+
+    // whether the padded URL-safe Base64 of the bytes starts with the prefix, encoding only as
+    //  far as the prefix goes
+    static boolean base64UrlStartsWith(byte[] bytes, int length, String prefix) {
+        if (prefix.length() > (length + 2) / 3 * 4) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            int group = i / 4 * 3;
+            int bit = (i % 4) * 6;
+            char c;
+            if (group + bit / 8 >= length) {
+                c = '=';
+            } else {
+                int triple = (bytes[group] & 0xff) << 16;
+                if (group + 1 < length) {
+                    triple |= (bytes[group + 1] & 0xff) << 8;
+                }
+                if (group + 2 < length) {
+                    triple |= bytes[group + 2] & 0xff;
+                }
+                c = BASE64_URL[(triple >> (18 - bit)) & 0x3f];
+            }
+            if (c != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // big mapped files are hashed a window at a time
+    private static final long MAP_CHUNK = 64 * 1024 * 1024;
+
+    // a digest and buffers per thread, so checks allocate nothing; null if there’s no SHA-256
+    private static final ThreadLocal<Hasher> sHasher = new ThreadLocal<Hasher>() {
+        @Override
+        protected Hasher initialValue() {
+            try {
+                return new Hasher(MessageDigest.getInstance("SHA-256"));
+            } catch (NoSuchAlgorithmException e) {
+                return null;
+            }
+        }
+    };
+
+    private static class Hasher {
+        final MessageDigest mDigest;
+        final byte[] mBuffer = new byte[8192];
+        final byte[] mHash;
+
+        Hasher(MessageDigest digest) {
+            mDigest = digest;
+            mHash = new byte[digest.getDigestLength()];
+        }
+    }
+
     public String dnsTxtCheckRequired() {
         return null;
     }
@@ -44,7 +44,7 @@ public class Reddit extends Prover {
             String nametag = mProof.getNametag();
 
             // fetch the JSON proof
-            Fetch fetch = new Fetch(mApiUrl);
+            Fetch fetch = fetch(mApiUrl, null, Fetch.DEFAULT_MAX_BYTES);
             String problem = fetch.problem();
             if (problem != null) {
                 mLog.add(problem);
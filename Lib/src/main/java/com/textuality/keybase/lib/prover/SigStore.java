@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2014 Tim Bray <tbray@textuality.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.textuality.keybase.lib.prover;
+
+import com.textuality.keybase.lib.DiskStore;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the signatures that proofs point at, keyed by sig_id.  A sig_id is a hash of the
+ *  signature, so what it names never changes, and entries never expire; re-verifying a proof
+ *  only has to go to the proof host, not back to keybase.io for the sig.
+ *
+ * Only the fields the provers use are kept: payload_json, sig, sig_id_short and api_url.  The
+ *  most recently used sigs are held in memory, and if there’s a DiskStore, all of them are
+ *  held there too, so they survive restarts.
+ *
+ * Install one with Prover.setSigStore().
+ */
+public class SigStore {
+
+    private static final String[] FIELDS = { "payload_json", "sig", "sig_id_short", "api_url" };
+
+    private final LinkedHashMap<String, JSONObject> mSigs;
+    private final DiskStore mDisk;
+
+    /**
+     * @param maxEntries how many sigs to hold in memory
+     * @param disk where else to keep them; may be null
+     */
+    public SigStore(final int maxEntries, DiskStore disk) {
+        mDisk = disk;
+        mSigs = new LinkedHashMap<String, JSONObject>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, JSONObject> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return a copy of the stored fields of the sig, or null if it’s not here
+     */
+    public JSONObject get(String sigId) {
+        synchronized (this) {
+            JSONObject sig = mSigs.get(sigId);
+            if (sig != null) {
+                return fields(sig);
+            }
+        }
+        if (mDisk != null) {
+            try {
+                String text = mDisk.get(diskKey(sigId), Long.MAX_VALUE);
+                if (text != null) {
+                    JSONObject sig = new JSONObject(text);
+                    synchronized (this) {
+                        mSigs.put(sigId, sig);
+                    }
+                    return fields(sig);
+                }
+            } catch (IOException e) {
+                // miss
+            } catch (JSONException e) {
+                // miss
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param sigId the sig_id
+     * @param sig an element of the "sigs" array from sig/get.json
+     * @return a copy of what was stored, the sig reduced to FIELDS
+     */
+    public JSONObject put(String sigId, JSONObject sig) throws JSONException {
+        JSONObject kept = fields(sig);
+        synchronized (this) {
+            mSigs.put(sigId, kept);
+        }
+        if (mDisk != null) {
+            try {
+                mDisk.put(kept.toString(), diskKey(sigId));
+            } catch (IOException e) {
+                // only in memory then, no harm done
+            }
+        }
+        return fields(kept);
+    }
+
+    public synchronized int size() {
+        return mSigs.size();
+    }
+
+    // the FIELDS of the sig, in a new object; they’re strings, so this copy shares nothing mutable
+    private static JSONObject fields(JSONObject sig) {
+        JSONObject kept = new JSONObject();
+        try {
+            for (String field : FIELDS) {
+                Object value = sig.opt(field);
+                if (value != null) {
+                    kept.put(field, value);
+                }
+            }
+        } catch (JSONException e) {
+            // can’t happen: the keys are constants and the values came from a valid JSONObject
+            throw new IllegalStateException(e);
+        }
+        return kept;
+    }
+
+    private static String diskKey(String sigId) {
+        return "s:" + sigId;
+    }
+}
@@ -44,7 +44,7 @@ public class Twitter extends Prover {
 
             // find the tweet's url and fetch it
             tweetUrl = mProof.getProofUrl();
-            Fetch fetch = new Fetch(tweetUrl);
+            Fetch fetch = fetch(tweetUrl, Fetch.upTo("</head>"), Fetch.DEFAULT_MAX_BYTES);
             String problem = fetch.problem();
             if (problem != null) {
                 mLog.add(problem);
@@ -43,7 +43,7 @@ public class Website extends Prover {
             String wellKnownUrl = JWalk.getString(sigJSON, "api_url");
 
             // fetch the proof
-            Fetch fetch = new Fetch(wellKnownUrl);
+            Fetch fetch = fetch(wellKnownUrl, Fetch.contains(mPgpMessage), Fetch.DEFAULT_MAX_BYTES);
             String problem = fetch.problem();
             if (problem != null) {
                 mLog.add(problem);
@@ -67,7 +67,7 @@ public class Website extends Prover {
             }
 
             // verify that message appears in gist
-            if (!fetch.getBody().contains(mPgpMessage)) {
+            if (!fetch.isFound()) {
                 mLog.add("Website claiming post doesn’t contain signed PGP message");
                 return false;
             }